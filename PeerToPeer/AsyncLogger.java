@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Queues log lines in a bounded ring buffer and writes them in batches on a background thread
+public class AsyncLogger
+{
+    // Levels, a line is kept if its level is at or below the configured one
+    public static final int OFF = 0;
+    public static final int INFO = 1;
+    public static final int DEBUG = 2;
+
+    // Most lines waiting to be written, past this lines are dropped
+    public static final int CAPACITY = 8192;
+    // Once the buffer is half full, only every this many DEBUG lines are kept
+    public static final int LOAD_SAMPLE_RATE = 16;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss ").withZone(ZoneId.systemDefault());
+
+    private final ArrayBlockingQueue<String> lines = new ArrayBlockingQueue<String>(CAPACITY);
+    private final Writer writer;
+    private final PrintStream out;
+    private final Thread writerThread;
+    private volatile int level;
+    private volatile boolean closed = false;
+
+    // The timestamp is only formatted again once the second changes
+    private volatile CachedTime cachedTime = new CachedTime(-1, null);
+
+    // Lines sampled away under load, and lines dropped because the buffer was full
+    private volatile long sampledCount = 0;
+    private volatile long droppedCount = 0;
+    private long debugSequence = 0;
+
+    private static class CachedTime
+    {
+        final long second;
+        final String text;
+
+        CachedTime(long second, String text)
+        {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // Either destination may be null
+    public AsyncLogger(Writer writer, PrintStream out, int level)
+    {
+        this.writer = writer;
+        this.out = out;
+        this.level = level;
+        this.writerThread = new Thread(() -> writeLoop(), "log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Parse a level name from the config file
+    public static int parseLevel(String name)
+    {
+        if (name.equalsIgnoreCase("OFF"))
+            return OFF;
+        if (name.equalsIgnoreCase("INFO"))
+            return INFO;
+        if (name.equalsIgnoreCase("DEBUG"))
+            return DEBUG;
+        throw new IllegalArgumentException("Unknown log level '" + name + "'");
+    }
+
+    public void setLevel(int level)
+    {
+        this.level = level;
+    }
+
+    public boolean isLoggable(int level)
+    {
+        return level <= this.level && !closed;
+    }
+
+    public Thread writerThread()
+    {
+        return writerThread;
+    }
+
+    public long sampledCount()
+    {
+        return sampledCount;
+    }
+
+    public long droppedCount()
+    {
+        return droppedCount;
+    }
+
+    // Stamp a line with the current time and queue it, never blocks the caller
+    public void log(int level, String message)
+    {
+        if (!isLoggable(level))
+            return;
+        // Under load keep only a sample of the per-piece lines, so the lines that matter still fit
+        if (level == DEBUG && lines.size() > CAPACITY / 2) {
+            synchronized (this) {
+                if (debugSequence++ % LOAD_SAMPLE_RATE != 0) {
+                    sampledCount++;
+                    return;
+                }
+            }
+        }
+        if (!lines.offer(timestamp() + message + "\n")) {
+            synchronized (this) {
+                droppedCount++;
+            }
+        }
+    }
+
+    private String timestamp()
+    {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            cached = new CachedTime(second, TIME_FORMAT.format(Instant.ofEpochSecond(second)));
+            cachedTime = cached;
+        }
+        return cached.text;
+    }
+
+    // Write everything queued so far in one go, waiting for the first line
+    private void writeLoop()
+    {
+        List<String> batch = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+        while (!closed || !lines.isEmpty()) {
+            try {
+                String line = lines.poll(100, TimeUnit.MILLISECONDS);
+                if (line == null)
+                    continue;
+                batch.add(line);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            lines.drainTo(batch);
+            text.setLength(0);
+            for (String line : batch)
+                text.append(line);
+            batch.clear();
+            if (writer != null) {
+                try {
+                    writer.write(text.toString());
+                    writer.flush();
+                } catch (IOException e) {
+                    PeerProcess.error("Failed to write to log file.");
+                }
+            }
+            if (out != null) {
+                out.print(text);
+                out.flush();
+            }
+        }
+    }
+
+    // Write out whatever is still queued and stop the writer thread
+    public void close()
+    {
+        closed = true;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                PeerProcess.error("Failed to close log file.");
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Encodes which pieces we have for the wire, and decodes a peer's announcement into its existing bitfield
+// Every peer takes the fixed-length BITFIELD, peers that set the compact flag in their handshake also take HAVE_ALL, HAVE_NONE and BITFIELD_RUNS
+public class BitfieldCodec
+{
+    // Set in the last reserved handshake byte by peers that take the compact forms
+    public static final byte COMPACT_FLAG = 0x01;
+
+    // Bytes in the fixed-length form, one bit per piece with piece 0 in the lowest bit of the first byte
+    public static int fixedLength(int numPieces)
+    {
+        return (numPieces + 7) / 8;
+    }
+
+    // Build the smallest announcement of our pieces the peer takes
+    public static Message encode(BitSet bitfield, int numPieces, boolean compact)
+    {
+        if (compact) {
+            int numHave = bitfield.cardinality();
+            if (numHave == numPieces)
+                return new Message(PeerProcess.HAVE_ALL);
+            if (numHave == 0)
+                return new Message(PeerProcess.HAVE_NONE);
+            byte[] runs = encodeRuns(bitfield, numPieces, fixedLength(numPieces));
+            if (runs != null)
+                return new Message(PeerProcess.BITFIELD_RUNS, runs);
+        }
+        return new Message(PeerProcess.BITFIELD, encodeFixed(bitfield, numPieces));
+    }
+
+    // Every piece as one bit, always the same length for the same number of pieces
+    public static byte[] encodeFixed(BitSet bitfield, int numPieces)
+    {
+        byte[] payload = new byte[fixedLength(numPieces)];
+        long[] words = bitfield.toLongArray();
+        for (int word = 0; word < words.length; word++)
+            for (int i = 0; i < 8 && word * 8 + i < payload.length; i++)
+                payload[word * 8 + i] = (byte)(words[word] >>> (8 * i));
+        return payload;
+    }
+
+    // Lengths of alternating runs of missing and held pieces, starting with missing, each as a varint
+    // Returns null if the runs take at least maxLength bytes, in which case the fixed-length form is smaller
+    public static byte[] encodeRuns(BitSet bitfield, int numPieces, int maxLength)
+    {
+        ByteBuffer payload = ByteBuffer.allocate(maxLength);
+        boolean have = false;
+        for (int start = 0; start < numPieces; have = !have) {
+            int end = have ? bitfield.nextClearBit(start) : bitfield.nextSetBit(start);
+            if (end == -1 || end > numPieces)
+                end = numPieces;
+            // A varint takes at most 5 bytes, so stop as soon as the next one may not fit
+            if (payload.remaining() < 5)
+                return null;
+            putVarint(payload, end - start);
+            start = end;
+        }
+        return Arrays.copyOf(payload.array(), payload.position());
+    }
+
+    // Replace the pieces in a peer's bitfield with the ones a BITFIELD, BITFIELD_RUNS, HAVE_ALL or HAVE_NONE message lists
+    // Pieces past the end of the file are ignored, returns false if the message was cut short
+    public static boolean decode(Message message, BitSet bitfield, int numPieces)
+    {
+        bitfield.clear();
+        if (message.type == PeerProcess.HAVE_ALL) {
+            bitfield.set(0, numPieces);
+        } else if (message.type == PeerProcess.BITFIELD) {
+            decodeFixed(message.payload, Math.min(message.length - 1, fixedLength(numPieces)), bitfield, numPieces);
+        } else if (message.type == PeerProcess.BITFIELD_RUNS) {
+            return decodeRuns(ByteBuffer.wrap(message.payload, 0, message.length - 1), bitfield, numPieces);
+        }
+        return true;
+    }
+
+    // Older peers sent BitSet.toByteArray(), which drops trailing zero bytes, so a shorter payload is fine
+    // Decoding goes through one temporary BitSet, which or() copies in a word at a time, far faster than setting bit by bit
+    private static void decodeFixed(byte[] payload, int length, BitSet bitfield, int numPieces)
+    {
+        bitfield.or(BitSet.valueOf(ByteBuffer.wrap(payload, 0, length)));
+        if (length * 8 > numPieces)
+            bitfield.clear(numPieces, length * 8);
+    }
+
+    private static boolean decodeRuns(ByteBuffer payload, BitSet bitfield, int numPieces)
+    {
+        boolean have = false;
+        for (int start = 0; start < numPieces && payload.hasRemaining(); have = !have) {
+            long run = getVarint(payload);
+            if (run < 0)
+                return false;
+            int end = (int)Math.min(start + run, numPieces);
+            if (have)
+                bitfield.set(start, end);
+            start = end;
+        }
+        return true;
+    }
+
+    // Seven bits per byte, lowest first, with the high bit set on every byte but the last
+    private static void putVarint(ByteBuffer buffer, int value)
+    {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    // Returns -1 if the varint is cut short or longer than 5 bytes
+    private static long getVarint(ByteBuffer buffer)
+    {
+        long value = 0;
+        for (int shift = 0; shift < 35 && buffer.hasRemaining(); shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// A reader thread and a writer thread doing blocking I/O for one connection, instead of the event loop's selector
+// The threads only do the socket I/O and the framing, every decoded message is handed to the event loop, which owns the rest of the state
+public class ConnectionThreads
+{
+    // Largest run of queued bytes the writer copies out of the codec at a time
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+    // Most reads the reader may be ahead of the event loop, so reads don't pile up while the loop is busy or the peer is over a download limit
+    private static final int MAX_READS_AHEAD = 4;
+
+    // Thread.ofVirtual(), when the JVM has virtual threads (Java 21 and later)
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderStart = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderStart = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_START = builderStart;
+    }
+
+    // Called on the event loop thread
+    public interface Handler
+    {
+        // Messages decoded from one read, along with how many bytes it took off the socket
+        void received(List<Object> messages, int bytesRead);
+        // Everything queued so far has been written
+        void drained();
+        // The connection broke, or was closed
+        void failed();
+    }
+
+    private final MessageCodec codec;
+    private final EventLoop eventLoop;
+    private final Handler handler;
+    private final Thread reader;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private final Semaphore readPermits = new Semaphore(MAX_READS_AHEAD);
+    // CPU time of the threads once they finish, added to a total for the whole peer
+    private final AtomicLong finishedCpuNanos;
+
+    // The channel must be connected and in blocking mode
+    public ConnectionThreads(MessageCodec codec, EventLoop eventLoop, Handler handler, String name, AtomicLong finishedCpuNanos)
+    {
+        this.codec = codec;
+        this.eventLoop = eventLoop;
+        this.handler = handler;
+        this.finishedCpuNanos = finishedCpuNanos;
+        this.reader = startThread(name + "-reader", () -> readLoop());
+        this.writer = startThread(name + "-writer", () -> writeLoop());
+    }
+
+    // Whether connections get virtual threads, otherwise they get platform threads
+    public static boolean virtualThreadsAvailable()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    // Start a thread for blocking I/O, a virtual thread where the JVM has them and a daemon platform thread otherwise
+    public static Thread startThread(String name, Runnable task)
+    {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread)BUILDER_START.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                PeerProcess.error("Failed to start a virtual thread, using a platform thread instead.");
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public List<Thread> threads()
+    {
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(reader);
+        threads.add(writer);
+        return threads;
+    }
+
+    // Let the reader do one more read, called by the event loop when it is done with one
+    public void resumeReading()
+    {
+        readPermits.release();
+    }
+
+    // Tell the writer there is something new queued in the codec, safe to call from any thread
+    public void wakeWriter()
+    {
+        LockSupport.unpark(writer);
+    }
+
+    // Stop both threads, the caller closes the channel which gets them out of any blocking read or write
+    public void close()
+    {
+        closed = true;
+        readPermits.release();
+        LockSupport.unpark(writer);
+    }
+
+    // Read and decode until the connection breaks, handing each read's messages to the event loop
+    private void readLoop()
+    {
+        try {
+            while (!closed) {
+                readPermits.acquire();
+                if (closed)
+                    break;
+                int bytesRead = codec.fill();
+                // The codec reuses its message, so hand over copies
+                List<Object> messages = new ArrayList<Object>();
+                Object messageObject;
+                while ((messageObject = codec.read()) != null)
+                    messages.add(PeerProcess.copyMessage(messageObject));
+                eventLoop.execute(() -> handler.received(messages, bytesRead));
+            }
+        } catch (IOException | InterruptedException e) {
+            if (!closed)
+                eventLoop.execute(() -> handler.failed());
+        } finally {
+            recordCpuTime();
+        }
+    }
+
+    // Write whatever is queued, then wait to be woken up for more
+    private void writeLoop()
+    {
+        ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+        try {
+            while (!closed) {
+                if (!codec.hasPendingWrites()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                codec.drain(chunk);
+                eventLoop.execute(() -> handler.drained());
+            }
+        } catch (IOException e) {
+            if (!closed)
+                eventLoop.execute(() -> handler.failed());
+        } finally {
+            recordCpuTime();
+        }
+    }
+
+    // Virtual threads don't report CPU time, so they count for nothing
+    private void recordCpuTime()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long cpuTime = threadBean.getCurrentThreadCpuTime();
+        if (cpuTime > 0)
+            finishedCpuNanos.addAndGet(cpuTime);
+    }
+}
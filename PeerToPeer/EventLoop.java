@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// Single-threaded reactor which dispatches selector readiness, queued tasks and timers
+public class EventLoop
+{
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private long timerSequence = 0;
+    private volatile boolean stopped = false;
+
+    // A task to run at a given time, optionally repeating
+    private static class Timer implements Comparable<Timer>
+    {
+        long deadline;
+        final long period;
+        final long sequence;
+        final Runnable task;
+
+        Timer(long deadline, long period, long sequence, Runnable task)
+        {
+            this.deadline = deadline;
+            this.period = period;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        // Order by deadline, then by scheduling order
+        public int compareTo(Timer other)
+        {
+            if (deadline != other.deadline)
+                return Long.compare(deadline, other.deadline);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public EventLoop() throws IOException
+    {
+        this.selector = Selector.open();
+    }
+
+    public Selector selector()
+    {
+        return selector;
+    }
+
+    // Run a task on the loop thread, safe to call from any thread
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Run a task once after a delay, must be called on the loop thread
+    public void schedule(long delayMillis, Runnable task)
+    {
+        timers.add(new Timer(System.nanoTime() + delayMillis * 1000000L, 0, timerSequence++, task));
+    }
+
+    // Run a task repeatedly at a fixed period, must be called on the loop thread
+    public void scheduleAtFixedRate(long periodMillis, Runnable task)
+    {
+        long period = periodMillis * 1000000L;
+        timers.add(new Timer(System.nanoTime() + period, period, timerSequence++, task));
+    }
+
+    // Make run return once the current task or handler is done, safe to call from any thread
+    public void stop()
+    {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    // Whether stop was called, tasks executed after that never run
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    // Close the selector once the loop has stopped, the channels registered with it are left open
+    public void close() throws IOException
+    {
+        selector.close();
+    }
+
+    // Run the loop until it is stopped, handing every ready key to the handler
+    public void run(Consumer<SelectionKey> handler)
+    {
+        while (!stopped) {
+            // Run tasks queued from other threads
+            Runnable task;
+            while (!stopped && (task = tasks.poll()) != null)
+                task.run();
+            if (stopped)
+                break;
+            // Run any timers that are due, and find out how long until the next one
+            long timeout = runDueTimers();
+            // Block until a channel is ready, a timer is due, or we are woken up
+            try {
+                if (timeout < 0)
+                    selector.select();
+                else if (timeout == 0)
+                    selector.selectNow();
+                else
+                    selector.select(timeout);
+            } catch (IOException e) {
+                PeerProcess.error("Error selecting channels.");
+                continue;
+            }
+            // Dispatch each ready channel
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.isValid())
+                    handler.accept(key);
+            }
+        }
+    }
+
+    // Run due timers, returns milliseconds until the next timer, or -1 if there are none
+    private long runDueTimers()
+    {
+        while (!timers.isEmpty()) {
+            Timer timer = timers.peek();
+            long remaining = timer.deadline - System.nanoTime();
+            if (remaining > 0)
+                return Math.max(1, remaining / 1000000L);
+            timers.poll();
+            timer.task.run();
+            // Reschedule repeating timers from their previous deadline so they don't drift
+            if (timer.period > 0) {
+                timer.deadline += timer.period;
+                timers.add(timer);
+            }
+        }
+        return -1;
+    }
+}
@@ -1,10 +1,10 @@
-import java.io.Serializable;
-
-public class HandshakeMessage implements Serializable {
+public class HandshakeMessage {
 
     public static String header = "P2PFILESHARINGPROJ";
     public static String zeroBits = "0000000000";
     public int peerId;
+    // Whether the sender takes the compact bitfield forms, we always do
+    public boolean compactBitfield = true;
 
     public HandshakeMessage(int peerId) {
         this.peerId = peerId;
@@ -1,7 +1,6 @@
-import java.io.Serializable;
-
-public class Message implements Serializable
+public class Message
 {
+    // Length of type + payload, payload may be a larger reused buffer when decoded
     public int length;
     public byte type;
     public byte[] payload;
@@ -0,0 +1,331 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// Length-prefixed binary framing for one peer connection
+// Writes are queued by the event loop, and written either by the event loop with flush or by a writer thread with drain
+public class MessageCodec
+{
+    // Wire format sizes
+    public static final int HANDSHAKE_LENGTH = 32;
+    public static final int HEADER_LENGTH = 5;
+
+    // Every handshake starts with the header, followed by 10 reserved bytes, the last of which holds feature flags
+    private static final byte[] HANDSHAKE_HEADER = HandshakeMessage.header.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HANDSHAKE_ZERO_BITS = new byte[HANDSHAKE_LENGTH - 4 - HANDSHAKE_HEADER.length - 1];
+
+    // Initial size of the per-connection buffers, they only grow for larger frames
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    // Largest length prefix we accept, anything longer can only come from a broken or hostile peer
+    private final int maxMessageLength;
+
+    // Both buffers are kept in fill mode between calls
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // Where the bytes not decoded yet start in the read buffer, they are only moved to the front when fill runs short of room
+    private int readPosition = 0;
+
+    // File regions to send with transferTo and buffers to send as they are, in order with the buffered bytes around them
+    private final ArrayDeque<Region> regions = new ArrayDeque<Region>();
+    private long bytesQueued = 0;
+    private long bytesFlushed = 0;
+    // Bytes a writer thread has taken off the queue, some of which it may still be writing
+    private long bytesTaken = 0;
+
+    // Reused for every decoded message, so handlers must not hold on to it
+    private final Message message = new Message(PeerProcess.CHOKE);
+    private byte[] payloadBuffer = new byte[0];
+
+    // The first frame on every connection is a handshake
+    private boolean handshakeReceived = false;
+
+    // Part of a file or a buffer queued for sending, along with where it sits in the outgoing byte stream
+    private static class Region
+    {
+        final FileChannel file;
+        final ByteBuffer buffer;
+        // Run once the region is written or dropped, or null
+        final Runnable release;
+        final long streamOffset;
+        long position;
+        long remaining;
+
+        Region(FileChannel file, ByteBuffer buffer, Runnable release, long streamOffset, long position, long count)
+        {
+            this.file = file;
+            this.buffer = buffer;
+            this.release = release;
+            this.streamOffset = streamOffset;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        // Write as much of the region as the channel takes, returns how much that was
+        long writeTo(SocketChannel channel) throws IOException
+        {
+            long written = buffer != null ? channel.write(buffer) : file.transferTo(position, remaining, channel);
+            position += written;
+            remaining -= written;
+            return written;
+        }
+    }
+
+    // maxMessageLength counts the type byte and payload, as the length prefix does
+    public MessageCodec(SocketChannel channel, int maxMessageLength)
+    {
+        this.channel = channel;
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    public SocketChannel channel()
+    {
+        return channel;
+    }
+
+    // Queue a handshake: 18-byte header, 9 zero bytes, 1 byte of flags, 4-byte peer ID
+    public synchronized void writeHandshake(HandshakeMessage handshakeMessage)
+    {
+        ensureWritable(HANDSHAKE_LENGTH);
+        writeBuffer.put(HANDSHAKE_HEADER);
+        writeBuffer.put(HANDSHAKE_ZERO_BITS);
+        writeBuffer.put(handshakeMessage.compactBitfield ? BitfieldCodec.COMPACT_FLAG : 0);
+        writeBuffer.putInt(handshakeMessage.peerId);
+        bytesQueued += HANDSHAKE_LENGTH;
+    }
+
+    // Queue a message: 4-byte length, 1-byte type, payload
+    public synchronized void writeMessage(Message message)
+    {
+        ensureWritable(4 + message.length);
+        writeBuffer.putInt(message.length);
+        writeBuffer.put(message.type);
+        writeBuffer.put(message.payload, 0, message.length - 1);
+        bytesQueued += 4 + message.length;
+    }
+
+    // Queue the header of a message whose payload the caller writes piece by piece
+    public synchronized void beginMessage(byte type, int payloadLength)
+    {
+        ensureWritable(HEADER_LENGTH);
+        writeBuffer.putInt(payloadLength + 1);
+        writeBuffer.put(type);
+        bytesQueued += HEADER_LENGTH;
+    }
+
+    // Queue a 4-byte value as part of a message payload
+    public synchronized void writeInt(int value)
+    {
+        ensureWritable(4);
+        writeBuffer.putInt(value);
+        bytesQueued += 4;
+    }
+
+    // Queue part of a file as part of a message payload, it is copied to the socket by the kernel
+    public synchronized void writeFileRegion(FileChannel file, long position, long count)
+    {
+        regions.add(new Region(file, null, null, bytesQueued, position, count));
+        bytesQueued += count;
+    }
+
+    // Queue the remaining bytes of a buffer as part of a message payload, without copying it
+    // The buffer must not change until release runs, which happens once it is written or the connection is closed
+    public synchronized void writeBufferRegion(ByteBuffer buffer, Runnable release)
+    {
+        regions.add(new Region(null, buffer, release, bytesQueued, 0, buffer.remaining()));
+        bytesQueued += buffer.remaining();
+    }
+
+    // Give up on everything still queued, called once the connection is closed
+    public synchronized void discardPendingWrites()
+    {
+        for (Region region : regions)
+            if (region.release != null)
+                region.release.run();
+        regions.clear();
+    }
+
+    // Total bytes ever queued for the peer
+    public synchronized long bytesQueued()
+    {
+        return bytesQueued;
+    }
+
+    // Bytes queued that haven't been written to the socket yet
+    public synchronized long pendingBytes()
+    {
+        return bytesQueued - bytesFlushed;
+    }
+
+    // Whether anything queued hasn't been written to the socket yet
+    public synchronized boolean hasPendingWrites()
+    {
+        return bytesQueued > bytesFlushed;
+    }
+
+    // Write as much queued data as the socket accepts, returns whether anything is left over
+    public synchronized boolean flush() throws IOException
+    {
+        while (true) {
+            // Write buffered bytes, stopping where the next region belongs
+            Region region = regions.peek();
+            int buffered = region == null ? writeBuffer.position() : (int)(region.streamOffset - bytesFlushed);
+            if (buffered > 0) {
+                writeBuffer.flip();
+                int limit = writeBuffer.limit();
+                writeBuffer.limit(buffered);
+                int written;
+                try {
+                    written = channel.write(writeBuffer);
+                } finally {
+                    writeBuffer.limit(limit);
+                    writeBuffer.compact();
+                }
+                bytesFlushed += written;
+                if (written < buffered)
+                    return true;
+            }
+            if (region == null)
+                return false;
+            // Send the region without copying it into the write buffer
+            bytesFlushed += region.writeTo(channel);
+            if (region.remaining > 0)
+                return true;
+            regions.poll();
+            if (region.release != null)
+                region.release.run();
+        }
+    }
+
+    // Write everything queued on a blocking channel, only holding the codec while taking the next chunk off the queue
+    // so the event loop can keep queueing while the writer thread waits on the socket
+    public void drain(ByteBuffer chunk) throws IOException
+    {
+        while (true) {
+            Region region;
+            synchronized (this) {
+                // Take buffered bytes up to where the next region belongs, or else the region
+                region = regions.peek();
+                int buffered = region == null ? writeBuffer.position() : (int)(region.streamOffset - bytesTaken);
+                if (buffered > 0) {
+                    region = null;
+                    writeBuffer.flip();
+                    int limit = writeBuffer.limit();
+                    writeBuffer.limit(Math.min(buffered, chunk.capacity()));
+                    chunk.clear();
+                    chunk.put(writeBuffer);
+                    chunk.flip();
+                    writeBuffer.limit(limit);
+                    writeBuffer.compact();
+                    bytesTaken += chunk.remaining();
+                } else if (region != null) {
+                    regions.poll();
+                    bytesTaken += region.remaining;
+                } else {
+                    return;
+                }
+            }
+            long written = 0;
+            if (region == null) {
+                while (chunk.hasRemaining())
+                    written += channel.write(chunk);
+            } else {
+                try {
+                    while (region.remaining > 0)
+                        written += region.writeTo(channel);
+                } finally {
+                    if (region.release != null)
+                        region.release.run();
+                }
+            }
+            synchronized (this) {
+                bytesFlushed += written;
+            }
+        }
+    }
+
+    // Read whatever the socket has available into the read buffer, returns how many bytes were read
+    public int fill() throws IOException
+    {
+        // Decoded frames are left where they are, so a buffer full of small frames is moved once rather than once per frame
+        if (readPosition == readBuffer.position()) {
+            readBuffer.clear();
+            readPosition = 0;
+        } else if (readPosition > 0 && readBuffer.remaining() < readBuffer.capacity() / 4) {
+            readBuffer.flip().position(readPosition);
+            readBuffer.compact();
+            readPosition = 0;
+        }
+        int bytesRead = channel.read(readBuffer);
+        if (bytesRead < 0)
+            throw new EOFException("Connection closed by peer.");
+        return bytesRead;
+    }
+
+    // Decode the next complete frame, returns a HandshakeMessage first, a reused Message afterwards, or null if incomplete
+    public Object read() throws IOException
+    {
+        readBuffer.flip().position(readPosition);
+        try {
+            // Handshakes have a fixed length and header, reserved bits we don't know are ignored
+            if (!handshakeReceived) {
+                if (readBuffer.remaining() < HANDSHAKE_LENGTH)
+                    return null;
+                for (int i = 0; i < HANDSHAKE_HEADER.length; i++)
+                    if (readBuffer.get() != HANDSHAKE_HEADER[i])
+                        throw new IOException("Invalid handshake header.");
+                readBuffer.position(readBuffer.position() + HANDSHAKE_ZERO_BITS.length);
+                byte flags = readBuffer.get();
+                handshakeReceived = true;
+                HandshakeMessage handshakeMessage = new HandshakeMessage(readBuffer.getInt());
+                handshakeMessage.compactBitfield = (flags & BitfieldCodec.COMPACT_FLAG) != 0;
+                return handshakeMessage;
+            }
+            // Every other message is length-prefixed, where the length includes the type byte
+            if (readBuffer.remaining() < HEADER_LENGTH)
+                return null;
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 1 || length > maxMessageLength)
+                throw new IOException("Invalid message length " + length + ".");
+            // Wait for the rest of the frame, making room for it if it doesn't fit in the buffer from where it starts
+            if (readBuffer.remaining() < 4 + length) {
+                if (readBuffer.capacity() < 4 + length)
+                    readBuffer = ByteBuffer.allocate(4 + length).put(readBuffer).flip();
+                else if (readBuffer.capacity() - readBuffer.position() < 4 + length)
+                    readBuffer.compact().flip();
+                return null;
+            }
+            readBuffer.getInt();
+            byte type = readBuffer.get();
+            // Only grow the payload buffer when a larger payload arrives
+            if (payloadBuffer.length < length - 1)
+                payloadBuffer = new byte[length - 1];
+            readBuffer.get(payloadBuffer, 0, length - 1);
+            message.length = length;
+            message.type = type;
+            message.payload = payloadBuffer;
+            return message;
+        } finally {
+            // Back to fill mode, remembering how far we decoded
+            int end = readBuffer.limit();
+            readPosition = readBuffer.position();
+            readBuffer.limit(readBuffer.capacity()).position(end);
+        }
+    }
+
+    // Make sure the write buffer can take another frame of the given size
+    private void ensureWritable(int size)
+    {
+        if (writeBuffer.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + size));
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Describes the shared file or directory and the SHA-256 hash of every piece, generated by a peer that has it
+public class Metadata
+{
+    public static final int HASH_LENGTH = 32;
+
+    public final String fileName;
+    public final long fileSize;
+    public final int pieceSize;
+    public final int numPieces;
+    // When a directory is shared, the path of each file inside it and its size, in the order they make up the pieces
+    public final String[] filePaths;
+    public final long[] fileSizes;
+    // When the shared files were last changed, as the peer that hashed them saw it, so a metadata file left over from an older copy can be told apart
+    public final long sourceModified;
+    // Every piece's hash back to back, so piece i's hash starts at i * HASH_LENGTH
+    private final byte[] pieceHashes;
+
+    // The file paths and sizes are null when a single file is shared
+    public Metadata(String fileName, long fileSize, int pieceSize, String[] filePaths, long[] fileSizes, long sourceModified, byte[] pieceHashes)
+    {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = (int)((fileSize + pieceSize - 1) / pieceSize);
+        this.filePaths = filePaths;
+        this.fileSizes = fileSizes;
+        this.sourceModified = sourceModified;
+        this.pieceHashes = pieceHashes;
+    }
+
+    public boolean isDirectory()
+    {
+        return filePaths != null;
+    }
+
+    // The name of the metadata file which describes a shared file
+    public static String metadataFileName(String fileName)
+    {
+        return fileName + ".meta";
+    }
+
+    // When a shared file, or the newest file in a shared directory, was last modified
+    public static long lastModified(File root) throws IOException
+    {
+        if (!root.isDirectory())
+            return root.lastModified();
+        try (Stream<Path> walk = Files.walk(root.toPath())) {
+            return walk.filter(path -> Files.isRegularFile(path)).mapToLong(path -> path.toFile().lastModified()).max().orElse(0);
+        }
+    }
+
+    // Check a piece's hash against the expected one
+    public boolean matches(int pieceIndex, byte[] hash)
+    {
+        int from = pieceIndex * HASH_LENGTH;
+        return Arrays.equals(pieceHashes, from, from + HASH_LENGTH, hash, 0, HASH_LENGTH);
+    }
+
+    // Write the metadata file, replacing any old one in one step so readers never see half of it
+    public void write(String metadataFileName) throws IOException
+    {
+        File file = new File(metadataFileName);
+        File temporaryFile = new File(metadataFileName + ".tmp");
+        FileWriter fileWriter = new FileWriter(temporaryFile);
+        fileWriter.write("FileName " + fileName + "\n");
+        fileWriter.write("FileSize " + fileSize + "\n");
+        fileWriter.write("PieceSize " + pieceSize + "\n");
+        fileWriter.write("Modified " + sourceModified + "\n");
+        if (isDirectory())
+            for (int i = 0; i < filePaths.length; i++)
+                fileWriter.write("File " + fileSizes[i] + " " + filePaths[i] + "\n");
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < numPieces; i++) {
+            line.setLength(0);
+            line.append("Piece ").append(i).append(' ');
+            for (int j = i * HASH_LENGTH; j < (i + 1) * HASH_LENGTH; j++)
+                line.append(Character.forDigit((pieceHashes[j] >> 4) & 0xf, 16)).append(Character.forDigit(pieceHashes[j] & 0xf, 16));
+            fileWriter.write(line.append('\n').toString());
+        }
+        fileWriter.close();
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Read a metadata file
+    public static Metadata read(String metadataFileName) throws IOException
+    {
+        String fileName = null;
+        long fileSize = -1;
+        int pieceSize = -1;
+        long sourceModified = 0;
+        byte[] pieceHashes = null;
+        List<String> filePaths = new ArrayList<String>();
+        List<Long> fileSizes = new ArrayList<Long>();
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(metadataFileName));
+        try {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                if (tokens[0].equals("FileName"))
+                    fileName = tokens[1];
+                else if (tokens[0].equals("FileSize"))
+                    fileSize = Long.parseLong(tokens[1]);
+                else if (tokens[0].equals("PieceSize"))
+                    pieceSize = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("Modified"))
+                    sourceModified = Long.parseLong(tokens[1]);
+                else if (tokens[0].equals("File")) {
+                    // The path comes last since it may contain spaces
+                    String path = line.substring(line.indexOf(' ', 5) + 1);
+                    if (!isSafePath(path))
+                        throw new IOException("Unsafe file path '" + path + "' in metadata file '" + metadataFileName + "'");
+                    fileSizes.add(Long.parseLong(tokens[1]));
+                    filePaths.add(path);
+                }
+                else if (tokens[0].equals("Piece")) {
+                    // The sizes come first, so we know how many hashes to expect
+                    if (pieceHashes == null)
+                        pieceHashes = new byte[(int)((fileSize + pieceSize - 1) / pieceSize) * HASH_LENGTH];
+                    int pieceIndex = Integer.parseInt(tokens[1]);
+                    for (int j = 0; j < HASH_LENGTH; j++)
+                        pieceHashes[pieceIndex * HASH_LENGTH + j] = (byte)Integer.parseInt(tokens[2].substring(2 * j, 2 * j + 2), 16);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed metadata file '" + metadataFileName + "'", e);
+        } finally {
+            bufferedReader.close();
+        }
+        if (fileName == null || fileSize < 0 || pieceSize <= 0 || pieceHashes == null)
+            throw new IOException("Incomplete metadata file '" + metadataFileName + "'");
+        if (filePaths.isEmpty())
+            return new Metadata(fileName, fileSize, pieceSize, null, null, sourceModified, pieceHashes);
+        // The files must add up to the whole stream
+        long[] sizes = new long[fileSizes.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++)
+            total += sizes[i] = fileSizes.get(i);
+        if (total != fileSize)
+            throw new IOException("File sizes in metadata file '" + metadataFileName + "' do not add up to " + fileSize);
+        return new Metadata(fileName, fileSize, pieceSize, filePaths.toArray(new String[0]), sizes, sourceModified, pieceHashes);
+    }
+
+    // Paths come from another peer, so only accept relative ones that stay inside the shared directory
+    private static boolean isSafePath(String path)
+    {
+        if (path.isEmpty() || path.startsWith("/") || path.contains("\\") || path.contains(":"))
+            return false;
+        for (String part : path.split("/"))
+            if (part.isEmpty() || part.equals(".") || part.equals(".."))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+// Counters, histograms and gauges for one peer process, readable over JMX and written out as a snapshot file
+// Recording never allocates, all the allocation happens when registering metrics and when taking a sample
+public class Metrics implements DynamicMBean
+{
+    // Metrics by name, in the order they were registered
+    private final LinkedHashMap<String, Object> metrics = new LinkedHashMap<String, Object>();
+    // Extra samples that are only known when sampling, like the per-connection stats
+    private final List<Collector> collectors = new ArrayList<Collector>();
+
+    // Adds samples to a sample map, keyed by name and labels in the snapshot file format
+    public interface Collector
+    {
+        void collect(Map<String, Long> sample);
+    }
+
+    // A count that only goes up, safe to add to from any thread
+    public static class Counter
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount)
+        {
+            value.addAndGet(amount);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    // Distribution of non-negative values in power of two buckets, safe to record from any thread
+    public static class Histogram
+    {
+        // Bucket i holds values below 2^i (and at least 2^(i - 1)), bucket 0 holds zero
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value)
+        {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value));
+        }
+
+        public long count()
+        {
+            return count.get();
+        }
+
+        public long sum()
+        {
+            return sum.get();
+        }
+
+        public long max()
+        {
+            return max.get();
+        }
+
+        // An upper bound for the given fraction of the values, accurate to within a factor of two
+        public long percentile(double fraction)
+        {
+            long total = count.get();
+            if (total == 0)
+                return 0;
+            long rank = (long)Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+            }
+            return max.get();
+        }
+    }
+
+    // Messages and bytes sent and received, by message type
+    public static class MessageStats
+    {
+        private static final int NUM_TYPES = PeerProcess.MESSAGE_TYPE_NAMES.length;
+
+        private final AtomicLongArray messagesSent = new AtomicLongArray(NUM_TYPES);
+        private final AtomicLongArray bytesSent = new AtomicLongArray(NUM_TYPES);
+        private final AtomicLongArray messagesReceived = new AtomicLongArray(NUM_TYPES);
+        private final AtomicLongArray bytesReceived = new AtomicLongArray(NUM_TYPES);
+
+        public void recordSent(byte type, long bytes)
+        {
+            if (type < 0 || type >= NUM_TYPES)
+                return;
+            messagesSent.incrementAndGet(type);
+            bytesSent.addAndGet(type, bytes);
+        }
+
+        public void recordReceived(byte type, long bytes)
+        {
+            if (type < 0 || type >= NUM_TYPES)
+                return;
+            messagesReceived.incrementAndGet(type);
+            bytesReceived.addAndGet(type, bytes);
+        }
+
+        public long bytesSent(byte type)
+        {
+            return bytesSent.get(type);
+        }
+
+        public long bytesReceived(byte type)
+        {
+            return bytesReceived.get(type);
+        }
+
+        // Add a sample for every message type, with the given labels in front of the type label
+        public void collect(Map<String, Long> sample, String prefix, String labels)
+        {
+            for (int i = 0; i < NUM_TYPES; i++) {
+                String typeLabels = "{" + labels + "type=\"" + PeerProcess.MESSAGE_TYPE_NAMES[i] + "\"}";
+                sample.put(prefix + "messages_sent_total" + typeLabels, messagesSent.get(i));
+                sample.put(prefix + "message_bytes_sent_total" + typeLabels, bytesSent.get(i));
+                sample.put(prefix + "messages_received_total" + typeLabels, messagesReceived.get(i));
+                sample.put(prefix + "message_bytes_received_total" + typeLabels, bytesReceived.get(i));
+            }
+        }
+    }
+
+    public synchronized Counter counter(String name)
+    {
+        Counter counter = new Counter();
+        metrics.put(name, counter);
+        return counter;
+    }
+
+    public synchronized Histogram histogram(String name)
+    {
+        Histogram histogram = new Histogram();
+        metrics.put(name, histogram);
+        return histogram;
+    }
+
+    // A value read from somewhere else whenever a sample is taken, the supplier must be safe to call from any thread
+    public synchronized void gauge(String name, LongSupplier supplier)
+    {
+        metrics.put(name, supplier);
+    }
+
+    public synchronized void addCollector(Collector collector)
+    {
+        collectors.add(collector);
+    }
+
+    // Read every metric, histograms are summarized by their count, sum, maximum and a few percentiles
+    // Only the lists are copied under the lock, a collector may wait on another thread and must not hold up everyone else's samples
+    public Map<String, Long> sample()
+    {
+        LinkedHashMap<String, Object> currentMetrics;
+        List<Collector> currentCollectors;
+        synchronized (this) {
+            currentMetrics = new LinkedHashMap<String, Object>(metrics);
+            currentCollectors = new ArrayList<Collector>(collectors);
+        }
+        LinkedHashMap<String, Long> sample = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Object> entry : currentMetrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                sample.put(name, ((Counter)metric).get());
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram)metric;
+                sample.put(name + "_count", histogram.count());
+                sample.put(name + "_sum", histogram.sum());
+                sample.put(name + "_max", histogram.max());
+                sample.put(name + "{quantile=\"0.5\"}", histogram.percentile(0.5));
+                sample.put(name + "{quantile=\"0.9\"}", histogram.percentile(0.9));
+                sample.put(name + "{quantile=\"0.99\"}", histogram.percentile(0.99));
+            } else {
+                sample.put(name, ((LongSupplier)metric).getAsLong());
+            }
+        }
+        for (Collector collector : currentCollectors)
+            collector.collect(sample);
+        return sample;
+    }
+
+    // Write a sample as "name value" lines, swapping the file in whole so a scraper never sees half of one
+    public void writeSnapshot(String fileName) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : sample().entrySet())
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        File path = new File(fileName);
+        File temporaryPath = new File(fileName + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporaryPath.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(text.toString());
+        }
+        Files.move(temporaryPath.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // JMX attributes are the sample entries, read only
+
+    public Object getAttribute(String name) throws AttributeNotFoundException
+    {
+        Long value = sample().get(name);
+        if (value == null)
+            throw new AttributeNotFoundException(name);
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] names)
+    {
+        Map<String, Long> sample = sample();
+        AttributeList attributes = new AttributeList();
+        for (String name : names)
+            if (sample.containsKey(name))
+                attributes.add(new Attribute(name, sample.get(name)));
+        return attributes;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Metrics are read only.");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    // There are no operations to invoke
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    // Built from a fresh sample, so connections that come and go show up as they do
+    public MBeanInfo getMBeanInfo()
+    {
+        Map<String, Long> sample = sample();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[sample.size()];
+        int i = 0;
+        for (String name : sample.keySet())
+            attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+        return new MBeanInfo(getClass().getName(), "Peer process metrics", attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
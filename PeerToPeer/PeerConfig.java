@@ -0,0 +1,169 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Everything a peer needs to start, read from Common.cfg and PeerInfo.cfg or filled in directly
+public class PeerConfig
+{
+    // One line of PeerInfo.cfg
+    public static class PeerAddress
+    {
+        public final int id;
+        public final String host;
+        public final int port;
+        public final boolean hasFile;
+
+        public PeerAddress(int id, String host, int port, boolean hasFile)
+        {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.hasFile = hasFile;
+        }
+    }
+
+    // Common.cfg values
+    public int numberOfPreferredNeighbors;
+    public int unchokingInterval;
+    public int optimisticUnchokingInterval;
+    public String fileName;
+    public long fileSize;
+    public int pieceSize;
+    public int blockSize = 16384;
+    public int maxOutstandingRequests = 16;
+    // Rate limits in bytes per second, 0 means unlimited
+    public long maxUploadRate = 0;
+    public long maxDownloadRate = 0;
+    public long maxPeerUploadRate = 0;
+    public long maxPeerDownloadRate = 0;
+    public int logLevel = AsyncLogger.DEBUG;
+    // Whether each connection gets its own reader and writer threads doing blocking I/O, instead of sharing the event loop's selector
+    public boolean threadPerConnection = false;
+    // Stop dialing peers we hear about from other peers once we have this many connections, 0 means no limit
+    public int maxConnections = 0;
+    // Bytes of recently uploaded pieces kept in memory, 0 sends every block straight from disk
+    public long readCacheSize = 0;
+
+    // Our own line of PeerInfo.cfg, a port of 0 listens on any free port
+    public int id;
+    public String address = "localhost";
+    public int port;
+    public boolean hasFile;
+    // Every other peer we know of at startup, we connect to the ones with lower IDs and wait for the others
+    public List<PeerAddress> peers = new ArrayList<PeerAddress>();
+
+    // Where the peer keeps its files, log, metadata and metrics snapshot
+    public File directory = new File(".");
+    // The common config file to watch for rate limit changes, or null to not watch one
+    public File commonConfigFile = null;
+    // Where log lines go
+    public boolean writeLogs = PeerProcess.WRITE_LOGS;
+    public boolean printLogs = PeerProcess.PRINT_LOGS;
+    // Threads hashing pieces
+    public int verifierThreads = Runtime.getRuntime().availableProcessors();
+    // Whether to close once we and every peer we are connected to have the file
+    public boolean closeWhenDone = true;
+    // Delay before handling each message we receive, to simulate a slower network (0 for none)
+    public int simulatedLatencyMillis = 0;
+    // Choose preferred neighbors at random instead of by how fast they send to us, to see what choosing by rate is worth
+    public boolean randomPreferredNeighbors = false;
+    // Request pieces in random order instead of rarest first, to see what rarest first is worth
+    public boolean randomPieceOrder = false;
+
+    // Read Common.cfg and PeerInfo.cfg from a directory, and watch Common.cfg for rate limit changes
+    public static PeerConfig load(int id, File directory) throws IOException
+    {
+        PeerConfig config = new PeerConfig();
+        config.id = id;
+        config.directory = directory;
+        config.commonConfigFile = new File(directory, "Common.cfg");
+        config.loadCommonConfig(config.commonConfigFile);
+        config.loadPeerInfo(new File(directory, "PeerInfo.cfg"));
+        return config;
+    }
+
+    // Load common config file
+    public void loadCommonConfig(File file) throws IOException
+    {
+        String line = null;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+            while ((line = bufferedReader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                if (tokens[0].equals("NumberOfPreferredNeighbors"))
+                    numberOfPreferredNeighbors = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("UnchokingInterval"))
+                    unchokingInterval = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("OptimisticUnchokingInterval"))
+                    optimisticUnchokingInterval = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("FileName"))
+                    fileName = tokens[1];
+                else if (tokens[0].equals("FileSize"))
+                    fileSize = Long.parseLong(tokens[1]);
+                else if (tokens[0].equals("PieceSize"))
+                    pieceSize = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("BlockSize"))
+                    blockSize = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("MaxOutstandingRequests"))
+                    maxOutstandingRequests = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("MaxConnections"))
+                    maxConnections = Integer.parseInt(tokens[1]);
+                else if (tokens[0].equals("ReadCacheSize"))
+                    readCacheSize = Long.parseLong(tokens[1]);
+                else if (tokens[0].equals("IoMode"))
+                    threadPerConnection = parseIoMode(tokens[1]);
+                else if (tokens[0].equals("LogLevel"))
+                    logLevel = AsyncLogger.parseLevel(tokens[1]);
+                else
+                    loadRateLimit(tokens);
+            }
+        }
+    }
+
+    // Parse an I/O mode name from the config file, returns whether connections get their own threads
+    public static boolean parseIoMode(String name)
+    {
+        if (name.equalsIgnoreCase("Selector"))
+            return false;
+        if (name.equalsIgnoreCase("Threads"))
+            return true;
+        throw new IllegalArgumentException("Unknown I/O mode '" + name + "'");
+    }
+
+    // Load a rate limit line of the common config file
+    public void loadRateLimit(String[] tokens)
+    {
+        if (tokens[0].equals("MaxUploadRate"))
+            maxUploadRate = Long.parseLong(tokens[1]);
+        else if (tokens[0].equals("MaxDownloadRate"))
+            maxDownloadRate = Long.parseLong(tokens[1]);
+        else if (tokens[0].equals("MaxPeerUploadRate"))
+            maxPeerUploadRate = Long.parseLong(tokens[1]);
+        else if (tokens[0].equals("MaxPeerDownloadRate"))
+            maxPeerDownloadRate = Long.parseLong(tokens[1]);
+    }
+
+    // Load peer info file, our own line fills in where we listen and whether we have the file
+    public void loadPeerInfo(File file) throws IOException
+    {
+        String line = null;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+            while ((line = bufferedReader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                int peerId = Integer.parseInt(tokens[0]);
+                String peerAddress = tokens[1];
+                int peerPort = Integer.parseInt(tokens[2]);
+                boolean peerHasFile = Integer.parseInt(tokens[3]) == 1;
+                if (peerId == id) {
+                    address = peerAddress;
+                    port = peerPort;
+                    hasFile = peerHasFile;
+                } else {
+                    peers.add(new PeerAddress(peerId, peerAddress, peerPort, peerHasFile));
+                }
+            }
+        }
+    }
+}
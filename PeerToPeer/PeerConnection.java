@@ -0,0 +1,69 @@
+import java.util.BitSet;
+
+// Everything we know about one connected peer, owned by the thread doing that connection's I/O
+public class PeerConnection
+{
+    public final MessageCodec codec;
+    // The connection's reader and writer threads, or null if the event loop's selector does its I/O
+    public ConnectionThreads threads;
+    // The peer's ID, or -1 until its handshake arrives
+    public int peerId;
+    // Whether we opened the connection, and whether it has been torn down
+    public final boolean outbound;
+    public boolean closed = false;
+    // How many times in a row connecting to the peer has failed
+    public int connectAttempt = 0;
+    // The peer's pieces, replaced in place when it sends a whole bitfield
+    public final BitSet bitfield;
+    // Whether the peer's handshake said it takes the compact bitfield forms
+    public boolean compactBitfield = false;
+
+    // Block requests we sent the peer, and block requests it sent us that we haven't served yet
+    public final RequestQueue requests;
+    public final RequestQueue uploads;
+
+    // Bytes of block data received from and sent to the peer since the last preferred neighbor update
+    public long bytesDownloaded = 0;
+    public long bytesUploaded = 0;
+    // Smoothed bytes per second received from and sent to the peer
+    public double downloadRate = 0;
+    public double uploadRate = 0;
+
+    // Pieces we finished that the peer hasn't been told about yet
+    public final BitSet pendingHaves = new BitSet();
+
+    // Per-connection rate limits, and whether we are waiting on them (or the global ones) to send or read more
+    public final TokenBucket uploadLimiter = new TokenBucket(0);
+    public final TokenBucket downloadLimiter = new TokenBucket(0);
+    public boolean uploadThrottled = false;
+    public boolean downloadThrottled = false;
+    // Corrupt pieces the peer sent part of
+    public int hashFailures = 0;
+
+    // When we last received anything, and last received a block we asked for, in System.nanoTime() units
+    public long lastReceived = System.nanoTime();
+    public long lastBlockReceived = System.nanoTime();
+    // How much we had queued for the peer at the last keep-alive check, if nothing was added since we send a keep-alive
+    public long keepAliveMark = 0;
+    // Block requests to the peer that timed out
+    public int requestTimeouts = 0;
+    // Messages and bytes exchanged with the peer, by message type
+    public final Metrics.MessageStats stats = new Metrics.MessageStats();
+
+    // Whether we told the peer we are interested, and whether it told us it is
+    public boolean interesting = false;
+    public boolean interested = false;
+    // Whether the peer is letting us request from it, and whether we are refusing its requests
+    public boolean unchokingUs = false;
+    public boolean choked = true;
+
+    public PeerConnection(MessageCodec codec, int peerId, boolean outbound, int numPieces, int maxOutstandingRequests, int maxQueuedUploads)
+    {
+        this.codec = codec;
+        this.peerId = peerId;
+        this.outbound = outbound;
+        this.bitfield = new BitSet(numPieces);
+        this.requests = new RequestQueue(maxOutstandingRequests);
+        this.uploads = new RequestQueue(maxQueuedUploads);
+    }
+}
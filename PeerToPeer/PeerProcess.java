@@ -1,22 +1,41 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 public class PeerProcess
@@ -35,597 +54,1973 @@ public class PeerProcess
     public static final byte BITFIELD = 5;
     public static final byte REQUEST = 6;
     public static final byte PIECE = 7;
+    public static final byte CANCEL = 8;
+    public static final byte HAVE_MULTI = 9;
+    public static final byte PEERS = 10;
+    public static final byte KEEP_ALIVE = 11;
+    // Compact forms of BITFIELD, only sent to peers whose handshake says they take them
+    public static final byte HAVE_ALL = 12;
+    public static final byte HAVE_NONE = 13;
+    public static final byte BITFIELD_RUNS = 14;
+    // Message type names by type, for the metrics
+    public static final String[] MESSAGE_TYPE_NAMES = { "CHOKE", "UNCHOKE", "INTERESTED", "NOT_INTERESTED", "HAVE", "BITFIELD", "REQUEST", "PIECE", "CANCEL", "HAVE_MULTI", "PEERS", "KEEP_ALIVE", "HAVE_ALL", "HAVE_NONE", "BITFIELD_RUNS" };
+
+    // Most requests we queue up for one peer, anything past this is dropped
+    public static final int MAX_QUEUED_UPLOADS = 256;
+    // Corrupt pieces a peer may be involved in before we stop requesting from it
+    public static final int MAX_HASH_FAILURES = 3;
+    // How often newly completed pieces are saved to the state file, at most this much progress is lost in a crash
+    public static final int STATE_SAVE_INTERVAL_MILLIS = 1000;
+    // Weight of the latest unchoking interval in the smoothed transfer rates
+    public static final double RATE_SMOOTHING = 0.5;
+    // How often Common.cfg is checked for new rate limits
+    public static final int CONFIG_RELOAD_INTERVAL_MILLIS = 1000;
+    // Delay before the first attempt to reach a peer again, doubled after every failure up to the maximum
+    public static final int CONNECT_BACKOFF_MILLIS = 500;
+    public static final int MAX_CONNECT_BACKOFF_MILLIS = 30000;
+    // Failed attempts in a row after which a peer is assumed to have left for good
+    public static final int MAX_CONNECT_ATTEMPTS = 10;
+    // How long an attempt to reach a peer may take before it counts as failed
+    public static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    // Most bytes of peer entries we put in one PEERS message, which also bounds the PEERS messages we accept
+    public static final int MAX_PEER_LIST_LENGTH = 64 * 1024;
+    // Most peers we haven't heard of that one PEERS message may add, so a peer can't have us dial an endless list of addresses
+    public static final int MAX_NEW_PEERS_PER_MESSAGE = 32;
+    // Pieces after a requested one that are read into the read cache along with it
+    public static final int READ_AHEAD_PIECES = 2;
+    // How long piece announcements wait so that several can go out in one message
+    public static final int HAVE_FLUSH_DELAY_MILLIS = 50;
+    // How often we send a keep-alive to a peer we have nothing else to send, and how long a silent peer is kept
+    public static final int KEEP_ALIVE_INTERVAL_MILLIS = 10000;
+    public static final int IDLE_TIMEOUT_MILLIS = 30000;
+    // How long a peer may go without sending any block we asked for before its requests are given to other peers
+    public static final int REQUEST_TIMEOUT_MILLIS = 10000;
+    // How often connections are checked for timed out requests and idleness
+    public static final int TIMEOUT_CHECK_INTERVAL_MILLIS = 1000;
+    // How often the metrics snapshot file is rewritten
+    public static final int METRICS_SNAPSHOT_INTERVAL_MILLIS = 5000;
+    // Longest a metrics reader on another thread waits for the event loop to sample the connections
+    public static final int METRICS_SAMPLE_TIMEOUT_MILLIS = 1000;
+    // How long a peer without the file waits for a peer that has it to publish the metadata, and how often it looks
+    public static final int METADATA_WAIT_MILLIS = 10 * 60 * 1000;
+    public static final int METADATA_POLL_INTERVAL_MILLIS = 500;
+
+    // Where everything below came from, the rate limits in it change while running
+    private final PeerConfig config;
 
     // Common.cfg values
-    private static int numberOfPreferredNeighbors;
-    private static int unchokingInterval;
-    private static int optimisticUnchokingInterval;
-    private static String fileName;
-    private static int fileSize;
-    private static int pieceSize;
-    private static int numPieces;
+    private int numberOfPreferredNeighbors;
+    private int unchokingInterval;
+    private int optimisticUnchokingInterval;
+    private String fileName;
+    private String metadataFileName;
+    private long fileSize;
+    private int pieceSize;
+    private int numPieces;
+    private int blockSize;
+    private int maxOutstandingRequests;
 
     // PeerInfo.cfg values
-    private static int id;
-    private static String address;
-    private static int port;
-    private static boolean hasFile;
+    private int id;
+    private String address;
+    private int port;
+    private boolean hasFile;
 
     // Threads
-    private static Thread workerThread;
-    private static Thread listenerThread;
-    private static Thread unchokingTimerThread;
-    private static Thread optimisticUnchokingTimerThread;
-
-    // Timers
-    private static boolean timeToUpdatePreferredNeighbors = false;
-    private static boolean timeToUpdateOptimisticallyUnchokedNeighbor = false;
-
-    // Neighbor info
-    private static Set<Socket> peerSockets = ConcurrentHashMap.newKeySet();
-    private static HashMap<Socket, Integer> peerIds = new HashMap<Socket, Integer>();
-    private static HashMap<Socket, ObjectOutputStream> peerOutStreams = new HashMap<Socket, ObjectOutputStream>();
-    private static HashMap<Socket, ObjectInputStream> peerInStreams = new HashMap<Socket, ObjectInputStream>();
-    private static HashMap<Socket, BitSet> peerBitfields = new HashMap<Socket, BitSet>();
-    private static HashMap<Socket, Integer> peerDownloadRates = new HashMap<Socket, Integer>();
-    private static HashMap<Socket, Integer> pendingPieces = new HashMap<Socket, Integer>();
+    private Thread workerThread;
+    // Whether start has been called, and released once the worker thread has cleaned up after close
+    private volatile boolean started = false;
+    // Set by close, so a start still waiting for the metadata gives up
+    private volatile boolean closeRequested = false;
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+    // CPU time used by the peer's threads, kept once they are gone
+    private volatile long finalCpuTimeNanos = -1;
+
+    // Event loop which does all socket I/O and runs the timers
+    private EventLoop eventLoop;
+    private ServerSocketChannel serverChannel;
+
+    // Connections with their own threads (the selector keeps track of the others), and CPU time of their threads that have finished
+    private Set<PeerConnection> threadedConnections = ConcurrentHashMap.newKeySet();
+    private AtomicLong finishedConnectionCpuNanos = new AtomicLong();
+
+    // Rate limits shared by all connections
+    private TokenBucket uploadLimiter = new TokenBucket(0);
+    private TokenBucket downloadLimiter = new TokenBucket(0);
+    private long commonConfigLastModified = 0;
+
+    // Neighbor info, by peer ID (peers that connected to us are added once their handshake arrives)
+    private ConcurrentHashMap<Integer, PeerConnection> peers = new ConcurrentHashMap<Integer, PeerConnection>();
 
     // Misc
-    private static FileWriter logWriter;
-    private static int numConnectionsToListenFor = 0;
+    private AsyncLogger logger;
+    // Where every peer we have heard of listens, from PeerInfo.cfg or from other peers, and the peers we are connecting to
+    private ConcurrentHashMap<Integer, InetSocketAddress> peerAddresses = new ConcurrentHashMap<Integer, InetSocketAddress>();
+    private HashSet<Integer> connecting = new HashSet<Integer>();
+    private boolean exiting = false;
+
+    // Metrics, readable over JMX and written to metrics_peer_ID.txt
+    private long startTime = System.nanoTime();
+    private Metrics metrics = new Metrics();
+    private ObjectName metricsName;
+    private Metrics.MessageStats messageStats = new Metrics.MessageStats();
+    // Block requests that timed out, times a peer stalled with requests outstanding, and connections dropped for being silent
+    private Metrics.Counter requestTimeoutCount = metrics.counter("request_timeouts_total");
+    private Metrics.Counter stallCount = metrics.counter("peer_stalls_total");
+    private Metrics.Counter idleDisconnectCount = metrics.counter("idle_disconnects_total");
+    // Blocks that arrived after another peer already sent them, and pieces that failed verification
+    private Metrics.Counter duplicateBlockCount = metrics.counter("duplicate_blocks_total");
+    private Metrics.Counter hashFailureCount = metrics.counter("hash_failures_total");
+    // Times we choked or unchoked a peer
+    private Metrics.Counter chokeChurnCount = metrics.counter("choke_changes_total");
+    // Time from requesting a block to receiving it, and queue depths
+    private Metrics.Histogram requestLatency = metrics.histogram("request_latency_micros");
+    private Metrics.Histogram outstandingRequests = metrics.histogram("outstanding_requests");
+    private Metrics.Histogram uploadQueueDepth = metrics.histogram("upload_queue_depth");
+    // How many pieces we have, and how long it took to get all of them (0 until then)
+    private volatile int numPiecesHave = 0;
+    private volatile long completionMillis = 0;
 
     // Info about this peer
-    private static HashSet<Socket> interestingPeers = new HashSet<Socket>();
-    private static HashSet<Socket> interestedPeers = new HashSet<Socket>();
-    private static HashSet<Socket> unchokedBy = new HashSet<Socket>();
-    private static HashSet<Socket> preferredNeighbors = new HashSet<Socket>();
-    private static Socket optimisticallyUnchokedNeighbor = null;
-    private static BitSet bitfield;
-    private static byte[][] fileData;
+    private HashSet<PeerConnection> preferredNeighbors = new HashSet<PeerConnection>();
+    private PeerConnection optimisticallyUnchokedNeighbor = null;
+    // Interested peers and their rates, reused for choosing preferred neighbors
+    private PeerConnection[] candidates = new PeerConnection[16];
+    private double[] candidateRates = new double[16];
+    // Whether a flush of piece announcements is coming up
+    private boolean haveFlushScheduled = false;
+    private BitSet bitfield;
+    private PiecePicker picker;
+    private PieceStorage storage;
+    private PieceState pieceState;
+    private Metadata metadata;
+    // The shared files, with paths inside the shared directory (null when a single file is shared) and sizes
+    private String[] sharedFilePaths;
+    private long[] sharedFileSizes;
+    private PieceVerifier verifier;
+    // Pieces several peers asked for kept in memory, or null when the read cache is off
+    private PieceCache readCache;
+    private HashMap<Integer, HashSet<PeerConnection>> pieceContributors = new HashMap<Integer, HashSet<PeerConnection>>();
+    // Pieces handed to the verifier and not yet back, and pieces waiting for room in its queue
+    private int verificationsInFlight = 0;
+    private final ArrayDeque<Runnable> piecesAwaitingVerification = new ArrayDeque<Runnable>();
     
     // Entry point
     public static void main(String[] args)
     {
+        // Get ID from command line, and read the config files from the working directory
+        PeerConfig config;
+        try {
+            config = PeerConfig.load(Integer.parseInt(args[0]), new File("."));
+        } catch (IOException e) {
+            error("Error reading config files.");
+            return;
+        }
+        PeerProcess peer = new PeerProcess(config);
+        // Write out the log and the metrics even if we are killed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> peer.close()));
+        try {
+            peer.start();
+        } catch (IllegalStateException e) {
+            error(e.getMessage());
+            System.exit(1);
+        }
+        // Exit once every peer has the file
+        peer.awaitClose();
+        System.exit(0);
+    }
+
+    // Set up a peer from its config, nothing is opened until it is started
+    public PeerProcess(PeerConfig config)
+    {
+        this.config = config;
+        numberOfPreferredNeighbors = config.numberOfPreferredNeighbors;
+        unchokingInterval = config.unchokingInterval;
+        optimisticUnchokingInterval = config.optimisticUnchokingInterval;
+        id = config.id;
+        address = config.address;
+        port = config.port;
+        hasFile = config.hasFile;
+        // Each peer keeps its copy of the file in its own directory, the metadata is shared by all of them
+        fileName = new File(config.directory, "peer_" + id + "/" + config.fileName).getPath();
+        metadataFileName = new File(config.directory, Metadata.metadataFileName(config.fileName)).getPath();
+        fileSize = config.fileSize;
+        pieceSize = config.pieceSize;
+        numPieces = (int)((fileSize + pieceSize - 1) / pieceSize);
+        blockSize = config.blockSize;
+        maxOutstandingRequests = config.maxOutstandingRequests;
+    }
+
+    // Connect to the swarm and start sharing, returns once the worker thread is running
+    // Throws IllegalStateException if we don't have the file and its metadata never shows up, or we are closed or interrupted while waiting for it
+    public void start()
+    {
+        startTime = System.nanoTime();
         // Set up threads
-        listenerThread = new Thread(() -> listenForConnections());
-        unchokingTimerThread = new Thread(() -> unchokingTimer());
-        optimisticUnchokingTimerThread = new Thread(() -> optimisticUnchokingTimer());
-        workerThread = new Thread(() -> worker());
-        // Get ID from command line
-        id = Integer.parseInt(args[0]);
+        workerThread = new Thread(() -> worker(), "peer-" + id);
+        started = true;
         // Set up logger
         prepareLogger();
-        // Load common config file (includes setting up attributes)
-        loadCommonConfig();
-        // Read peer info file (includes connecting to previous peers and starting listener thread)
-        loadPeerInfoAndStartConnecting();
+        // Set up the event loop
+        prepareEventLoop();
+        // Set up the rate limits, and remember when the common config file last changed
+        if (config.commonConfigFile != null)
+            commonConfigLastModified = config.commonConfigFile.lastModified();
+        applyRateLimits();
+        // Connect to previous peers and start listening
+        startConnecting();
         // Initialize attributes
-        initialize();
-        // Start the remaining threads
+        try {
+            initialize();
+        } catch (IllegalStateException e) {
+            abortStart();
+            throw e;
+        }
+        // Publish the metrics
+        prepareMetrics();
+        // Start the worker thread
         workerThread.start();
-        unchokingTimerThread.start();
-        optimisticUnchokingTimerThread.start();
+    }
+
+    // Stop sharing and close everything, safe to call from any thread and more than once
+    public void close()
+    {
+        closeRequested = true;
+        // Nothing to clean up if the worker thread never got going
+        if (!started || !workerThread.isAlive())
+            return;
+        eventLoop.stop();
+        // On the loop thread itself the cleanup happens once the current task returns
+        if (Thread.currentThread() != workerThread)
+            awaitClose();
+    }
+
+    // Close what start opened before it failed, the worker thread never ran so there is nothing else to clean up
+    private void abortStart()
+    {
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+            eventLoop.close();
+        } catch (IOException e) {
+            error("Error closing event loop.");
+        }
+        logger.close();
+        closedLatch.countDown();
+    }
+
+    // Wait until the peer has closed, either because close was called or because every peer has the file
+    public void awaitClose()
+    {
+        try {
+            closedLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Wait up to a timeout for the peer to close, returns whether it did
+    public boolean awaitClose(long timeoutMillis) throws InterruptedException
+    {
+        return closedLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isClosed()
+    {
+        return closedLatch.getCount() == 0;
+    }
+
+    public int id()
+    {
+        return id;
+    }
+
+    // The port we listen on, which is only known after starting if the config asked for any free port
+    public int port()
+    {
+        return port;
+    }
+
+    public int numPieces()
+    {
+        return numPieces;
+    }
+
+    public int numPiecesHave()
+    {
+        return numPiecesHave;
+    }
+
+    // Milliseconds from starting to having the whole file, 0 until then (and for a peer that started with it)
+    public long completionMillis()
+    {
+        return completionMillis;
+    }
+
+    // Block data received from and sent to all peers
+    public long bytesDownloaded()
+    {
+        return messageStats.bytesReceived(PIECE);
+    }
+
+    public long bytesUploaded()
+    {
+        return messageStats.bytesSent(PIECE);
+    }
+
+    public Metrics metrics()
+    {
+        return metrics;
+    }
+
+    // CPU time used by the worker, log writer, piece verifier and connection threads, which is everything but startup
+    // (virtual threads don't report their CPU time, so connection threads only count when they are platform threads)
+    public long cpuTimeNanos()
+    {
+        if (finalCpuTimeNanos != -1)
+            return finalCpuTimeNanos;
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long total = finishedConnectionCpuNanos.get();
+        List<Thread> threads = new ArrayList<Thread>(verifier.threads());
+        if (readCache != null)
+            threads.addAll(readCache.threads());
+        threads.add(workerThread);
+        threads.add(logger.writerThread());
+        for (PeerConnection peer : threadedConnections)
+            threads.addAll(peer.threads.threads());
+        for (Thread thread : threads) {
+            long cpuTime = threadBean.getThreadCpuTime(thread.getId());
+            if (cpuTime > 0)
+                total += cpuTime;
+        }
+        return total;
     }
 
     // Initialize attributes
-    private static void initialize()
+    private void initialize()
     {
-        // Initialize file data (the last piece may be smaller than the rest)
-        fileData = new byte[numPieces][pieceSize];
-        fileData[numPieces - 1] = new byte[fileSize % pieceSize];
-        // Initialize bitfield and pieces requested
+        // Work out which files are shared, from our own copy if we have it, otherwise from the metadata published by a peer that has it
+        if (hasFile)
+            listSharedFiles();
+        else
+            loadMetadata();
+        // Open the files on disk, pieces are read and written in place rather than held in memory
+        try {
+            storage = new PieceStorage(sharedFileStoragePaths(), sharedFileSizes, pieceSize, hasFile);
+        } catch (IOException e) {
+            error("Error opening file '" + fileName + "'");
+        }
+        // Hash the files if we have them, and publish the hashes for the other peers
+        verifier = new PieceVerifier(storage, pieceSize, config.verifierThreads);
+        if (storage != null && config.readCacheSize >= pieceSize)
+            readCache = new PieceCache(storage, numPieces, pieceSize, config.readCacheSize);
+        if (hasFile)
+            generateMetadata();
+        // Initialize bitfield, if we have the file set it to all 1s, otherwise start from the pieces saved by an earlier run
         bitfield = new BitSet(numPieces);
-        // If we have the file
-        if (hasFile) {
-            // Read in the file
-            try {
-                FileInputStream fileInputStream = new FileInputStream(fileName);
-                for (int i = 0; i < numPieces; i++)
-                    fileInputStream.read(fileData[i]);
-                fileInputStream.close();
-            } catch (IOException e) {
-                error("Error reading file '" + fileName + "'");
-            }
-            // Set bitfield to all 1s
+        if (hasFile)
             bitfield.set(0, numPieces);
-        }
+        else
+            loadPieceState();
+        numPiecesHave = bitfield.cardinality();
+        // Initialize the picker which tracks requested blocks and piece availability
+        picker = new PiecePicker(fileSize, pieceSize, blockSize, bitfield);
+        picker.setRandomOrder(config.randomPieceOrder);
     }
 
-    private static void writeFile()
+    // List the files we share, which is every regular file under FileName if it is a directory
+    private void listSharedFiles()
     {
-        try {
-            // Create the directory if it doesn't exist
-            File directory = new File("peer_" + id);
-            if (!directory.exists())
-                directory.mkdir();
-            // Write the file
-            FileOutputStream fileOutputStream = new FileOutputStream(fileName);
-            for (int i = 0; i < numPieces; i++)
-                fileOutputStream.write(fileData[i]);
-            fileOutputStream.close();
+        File root = new File(fileName);
+        if (!root.isDirectory()) {
+            sharedFileSizes = new long[] { fileSize };
+            return;
+        }
+        // Files go in order of their paths, so every peer agrees on where pieces fall
+        try (Stream<Path> walk = Files.walk(root.toPath())) {
+            List<String> paths = walk.filter(path -> Files.isRegularFile(path))
+                .map(path -> root.toPath().relativize(path).toString().replace(File.separatorChar, '/'))
+                .sorted()
+                .collect(Collectors.toList());
+            sharedFilePaths = paths.toArray(new String[0]);
+            sharedFileSizes = new long[sharedFilePaths.length];
+            fileSize = 0;
+            for (int i = 0; i < sharedFilePaths.length; i++) {
+                sharedFileSizes[i] = new File(root, sharedFilePaths[i]).length();
+                fileSize += sharedFileSizes[i];
+            }
+            numPieces = (int)((fileSize + pieceSize - 1) / pieceSize);
         } catch (IOException e) {
-            e.printStackTrace();
+            error("Error listing directory '" + fileName + "'");
         }
     }
 
+    // Where each shared file lives on disk
+    private String[] sharedFileStoragePaths()
+    {
+        if (sharedFilePaths == null)
+            return new String[] { fileName };
+        String[] paths = new String[sharedFilePaths.length];
+        for (int i = 0; i < paths.length; i++)
+            paths[i] = fileName + "/" + sharedFilePaths[i];
+        return paths;
+    }
+
     // Set up logger
-    private static void prepareLogger()
+    private void prepareLogger()
     {
-        if (WRITE_LOGS)
+        FileWriter logWriter = null;
+        if (config.writeLogs)
         {
             try {
-                logWriter = new FileWriter("log_peer_" + id + ".log");
+                logWriter = new FileWriter(new File(config.directory, "log_peer_" + id + ".log"));
             } catch (IOException e) {
                 error("Failed to create log file for peer " + id + ".");
             }
         }
+        // Lines are written by the logger's own thread, whatever is left is written out when we close
+        logger = new AsyncLogger(logWriter, config.printLogs ? System.out : null, config.logLevel);
     }
 
-    // Log a message
-    private static void log(String message)
+    // Register the metrics that are read from elsewhere, and publish them over JMX
+    private void prepareMetrics()
     {
-        String time;
-        if (WRITE_LOGS || PRINT_LOGS) {
-            time = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss ").format(new java.util.Date());
-            if (WRITE_LOGS) {
-                try {
-                    logWriter.write(time + message + "\n");
-                    logWriter.flush();
-                } catch (IOException e) {
-                    error("Failed to write to log_peer_" + id + ".log");
+        metrics.gauge("peers_connected", () -> peers.size());
+        metrics.gauge("pieces_total", () -> numPieces);
+        metrics.gauge("pieces_have", () -> numPiecesHave);
+        metrics.gauge("completion_millis", () -> completionMillis);
+        metrics.gauge("uptime_millis", () -> (System.nanoTime() - startTime) / 1000000L);
+        metrics.gauge("upload_throttles_total", () -> uploadLimiter.throttleCount());
+        metrics.gauge("download_throttles_total", () -> downloadLimiter.throttleCount());
+        metrics.gauge("log_lines_sampled_total", () -> logger.sampledCount());
+        metrics.gauge("log_lines_dropped_total", () -> logger.droppedCount());
+        if (readCache != null) {
+            metrics.gauge("read_cache_hits_total", () -> readCache.hits());
+            metrics.gauge("read_cache_misses_total", () -> readCache.misses());
+            metrics.gauge("read_cache_bytes", () -> readCache.bytesCached());
+        }
+        metrics.addCollector(sample -> collectPeerMetrics(sample));
+        try {
+            metricsName = new ObjectName("PeerToPeer:type=Metrics,peer=" + id);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            error("Failed to register metrics with JMX.");
+            metricsName = null;
+        }
+    }
+
+    // Add the message counts for all peers together, and the stats of each connected peer
+    // The connections' state belongs to the event loop, so readers on other threads (JMX, Swarm) have the loop take that part of the sample,
+    // except before the loop thread has started (start registers the metrics first) and after it has finished
+    private void collectPeerMetrics(Map<String, Long> sample)
+    {
+        messageStats.collect(sample, "", "");
+        if (!started || !workerThread.isAlive() || Thread.currentThread() == workerThread) {
+            collectConnectionMetrics(sample);
+            return;
+        }
+        // A stopped loop runs no more tasks, so this sample goes without the per-connection stats
+        if (eventLoop.isStopped())
+            return;
+        CompletableFuture<Map<String, Long>> connectionSample = new CompletableFuture<Map<String, Long>>();
+        eventLoop.execute(() -> {
+            Map<String, Long> loopSample = new LinkedHashMap<String, Long>();
+            collectConnectionMetrics(loopSample);
+            connectionSample.complete(loopSample);
+        });
+        try {
+            sample.putAll(connectionSample.get(METRICS_SAMPLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // The loop is stuck or shutting down, so this sample goes without the per-connection stats
+        }
+    }
+
+    // The stats of each connected peer, must run on the event loop thread (or once it has stopped)
+    private void collectConnectionMetrics(Map<String, Long> sample)
+    {
+        for (PeerConnection peer : peers.values()) {
+            String labels = "{peer=\"" + peer.peerId + "\"}";
+            sample.put("peer_requests_outstanding" + labels, (long)peer.requests.size());
+            sample.put("peer_request_window" + labels, (long)peer.requests.limit());
+            sample.put("peer_uploads_queued" + labels, (long)peer.uploads.size());
+            sample.put("peer_write_backlog_bytes" + labels, peer.codec.pendingBytes());
+            sample.put("peer_download_rate" + labels, (long)peer.downloadRate);
+            sample.put("peer_upload_rate" + labels, (long)peer.uploadRate);
+            sample.put("peer_request_timeouts_total" + labels, (long)peer.requestTimeouts);
+            sample.put("peer_hash_failures_total" + labels, (long)peer.hashFailures);
+            peer.stats.collect(sample, "peer_", "peer=\"" + peer.peerId + "\",");
+        }
+    }
+
+    private void writeMetricsSnapshot()
+    {
+        try {
+            metrics.writeSnapshot(new File(config.directory, "metrics_peer_" + id + ".txt").getPath());
+        } catch (IOException e) {
+            error("Failed to write metrics snapshot.");
+        }
+    }
+
+    // Hash every piece of our copy of the file in parallel, and publish the hashes for the other peers
+    private void generateMetadata()
+    {
+        try {
+            long sourceModified = Metadata.lastModified(new File(fileName));
+            metadata = new Metadata(config.fileName, fileSize, pieceSize, sharedFilePaths, sharedFilePaths == null ? null : sharedFileSizes, sourceModified, verifier.hashAll());
+            metadata.write(metadataFileName);
+        } catch (IOException e) {
+            error("Error writing metadata file '" + metadataFileName + "'");
+        }
+    }
+
+    // Read the file list and piece hashes published by a peer that has the file, waiting until they show up
+    private void loadMetadata()
+    {
+        long deadline = System.nanoTime() + METADATA_WAIT_MILLIS * 1000000L;
+        while (true) {
+            try {
+                Metadata loaded = Metadata.read(metadataFileName);
+                // The size of a shared directory comes from its file list, Common.cfg only gives the size of a single file
+                if (loaded.pieceSize != pieceSize || (!loaded.isDirectory() && loaded.fileSize != fileSize))
+                    error("Metadata file '" + metadataFileName + "' does not match Common.cfg. Waiting...");
+                else if (!matchesSharedCopies(loaded))
+                    error("Metadata file '" + metadataFileName + "' is from an older copy of the file. Waiting...");
+                else {
+                    metadata = loaded;
+                    fileSize = loaded.fileSize;
+                    numPieces = loaded.numPieces;
+                    sharedFilePaths = loaded.filePaths;
+                    sharedFileSizes = loaded.isDirectory() ? loaded.fileSizes : new long[] { fileSize };
+                    return;
                 }
+            } catch (IOException e) {
+                error("Metadata file '" + metadataFileName + "' is not available yet. Waiting...");
             }
-            if (PRINT_LOGS)
-                System.out.print(time + message + "\n");
+            if (closeRequested)
+                throw new IllegalStateException("Closed while waiting for metadata file '" + metadataFileName + "'");
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("Gave up waiting for metadata file '" + metadataFileName + "'");
+            try {
+                Thread.sleep(METADATA_POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for metadata file '" + metadataFileName + "'");
+            }
+        }
+    }
+
+    // Whether metadata describes the copies the peers that have the file share now, as far as we can see them
+    // A peer that has the file rewrites the metadata when it starts, until then the file may still hold the hashes of an older copy
+    private boolean matchesSharedCopies(Metadata loaded) throws IOException
+    {
+        for (PeerConfig.PeerAddress peer : config.peers) {
+            File copy = new File(config.directory, "peer_" + peer.id + "/" + config.fileName);
+            if (peer.hasFile && copy.exists() && Metadata.lastModified(copy) != loaded.sourceModified)
+                return false;
+        }
+        return true;
+    }
+
+    // Read which pieces an earlier run saved, and keep the state file open to record new ones
+    private void loadPieceState()
+    {
+        String stateFileName = PieceState.stateFileName(fileName);
+        pieceState = new PieceState(stateFileName, fileSize, pieceSize);
+        try {
+            // Saved pieces are only good if the files they were saved in are still there
+            BitSet saved = pieceState.load();
+            for (int i = saved.nextSetBit(0); i != -1; i = saved.nextSetBit(i + 1)) {
+                if (storage.existedAtStart(i))
+                    bitfield.set(i);
+                else
+                    pieceState.pieceLost(i);
+            }
+        } catch (IOException e) {
+            error("Error reading state file '" + stateFileName + "'");
+        }
+        // Forget lost pieces on disk before anything new is written over them
+        savePieceState();
+        // We may have finished before stopping
+        if (bitfield.cardinality() == numPieces)
+            hasFile = true;
+    }
+
+    // Save newly completed pieces, making sure their data is on disk before they are marked as done
+    private void savePieceState()
+    {
+        if (pieceState == null || !pieceState.isDirty())
+            return;
+        try {
+            storage.force();
+            pieceState.save();
+        } catch (IOException e) {
+            error("Error saving state file for '" + fileName + "'");
+        }
+    }
+
+    // Set up event loop
+    private void prepareEventLoop()
+    {
+        try {
+            eventLoop = new EventLoop();
+        } catch (IOException e) {
+            error("Failed to open selector for peer " + id + ".");
         }
     }
 
+    // Log a message
+    private void log(String message)
+    {
+        log(AsyncLogger.INFO, message);
+    }
+
+    // Log a message at a level, DEBUG is for per-piece events which may be sampled under load
+    private void log(int level, String message)
+    {
+        logger.log(level, message);
+    }
+
     // Print an error message
-    private static void error(String message)
+    public static void error(String message)
     {
         if (PRINT_ERRS)
             System.out.println(message);
     }
 
-    // Load common config file
-    private static void loadCommonConfig()
+    // Pick up new rate limits if the common config file changed, the rest of it only applies at startup
+    private void reloadRateLimits()
     {
-        String commonConfigFileName = "Common.cfg";
+        File commonConfigFile = config.commonConfigFile;
+        if (commonConfigFile == null)
+            return;
+        long lastModified = commonConfigFile.lastModified();
+        if (lastModified == commonConfigLastModified)
+            return;
+        commonConfigLastModified = lastModified;
         String line = null;
         try {
-            FileReader fileReader = new FileReader(commonConfigFileName);
+            FileReader fileReader = new FileReader(commonConfigFile);
             BufferedReader bufferedReader = new BufferedReader(fileReader);
-            while ((line = bufferedReader.readLine()) != null) {
-                String[] tokens = line.split(" ");
-                if (tokens[0].equals("NumberOfPreferredNeighbors"))
-                    numberOfPreferredNeighbors = Integer.parseInt(tokens[1]);
-                else if (tokens[0].equals("UnchokingInterval"))
-                    unchokingInterval = Integer.parseInt(tokens[1]);
-                else if (tokens[0].equals("OptimisticUnchokingInterval"))
-                    optimisticUnchokingInterval = Integer.parseInt(tokens[1]);
-                else if (tokens[0].equals("FileName"))
-                    fileName = "peer_" + id + "/" + tokens[1];
-                else if (tokens[0].equals("FileSize"))
-                    fileSize = Integer.parseInt(tokens[1]);
-                else if (tokens[0].equals("PieceSize"))
-                    pieceSize = Integer.parseInt(tokens[1]);
-            }
+            while ((line = bufferedReader.readLine()) != null)
+                config.loadRateLimit(line.split(" "));
             bufferedReader.close();
-            numPieces = (int)Math.ceil((double)fileSize / pieceSize);
+            applyRateLimits();
         }
-        catch (IOException e) {
-            error("Error reading file '" + commonConfigFileName + "'");
+        catch (IOException | NumberFormatException e) {
+            error("Error reloading rate limits from '" + commonConfigFile + "'");
         }
     }
 
-    // Load peer info file
-    private static void loadPeerInfoAndStartConnecting()
+    // Change the rate limits while running, safe to call from any thread
+    public void setRateLimits(long uploadRate, long downloadRate, long peerUploadRate, long peerDownloadRate)
     {
-        String peerInfoConfigFileName = "PeerInfo.cfg";
-        String line = null;
-        try {
-            FileReader fileReader = new FileReader(peerInfoConfigFileName);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            while ((line = bufferedReader.readLine()) != null) {
-                String[] tokens = line.split(" ");
-                int peerId = Integer.parseInt(tokens[0]);
-                String peerAddress = tokens[1];
-                int peerPort = Integer.parseInt(tokens[2]);
-                boolean peerHasFile = Integer.parseInt(tokens[3]) == 1;
-                if (peerId < id) {
-                    startConnection(peerId, peerAddress, peerPort);
-                } else if (peerId == id) {
-                    id = peerId;
-                    address = peerAddress;
-                    port = peerPort;
-                    hasFile = peerHasFile;
-                } else {
-                    numConnectionsToListenFor++;
-                }
-            }
-            listenerThread.start();
-            bufferedReader.close();
+        eventLoop.execute(() -> {
+            config.maxUploadRate = uploadRate;
+            config.maxDownloadRate = downloadRate;
+            config.maxPeerUploadRate = peerUploadRate;
+            config.maxPeerDownloadRate = peerDownloadRate;
+            applyRateLimits();
+        });
+    }
+
+    // Hand the configured rate limits to the global and per-connection token buckets
+    private void applyRateLimits()
+    {
+        uploadLimiter.setRate(config.maxUploadRate);
+        downloadLimiter.setRate(config.maxDownloadRate);
+        for (PeerConnection peer : peers.values()) {
+            peer.uploadLimiter.setRate(config.maxPeerUploadRate);
+            peer.downloadLimiter.setRate(config.maxPeerDownloadRate);
         }
-        catch (IOException e) {
-            error("Error reading file '" + peerInfoConfigFileName + "'");
+    }
+
+    // Connect to the peers before us in the peer list and start listening, the peers after us connect to us
+    // Every connection is started at once and finishes in the event loop, so a slow or missing peer holds up nobody else
+    private void startConnecting()
+    {
+        for (PeerConfig.PeerAddress peer : config.peers) {
+            peerAddresses.put(peer.id, new InetSocketAddress(peer.host, peer.port));
+            if (peer.id < id && connecting.add(peer.id))
+                eventLoop.execute(() -> connect(peer.id, 0));
         }
+        listenForConnections();
     }
 
-    // Begin handshake with a peer
-    public static void startConnection(int peerId, String peerAddress, int peerPort)
+    // How long to wait before the next attempt to reach a peer, with random jitter so peers don't retry in lockstep
+    private static long connectBackoffMillis(int attempt)
     {
-        // Try to connect until successful
-        Socket peerSocket = null;
-        while (true) {
+        long delay = Math.min(MAX_CONNECT_BACKOFF_MILLIS, (long)CONNECT_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return delay / 2 + (long)(Math.random() * (delay / 2));
+    }
+
+    // Connect to a peer in the background after a backoff delay, unless we are already connected or connecting to it
+    private void scheduleConnect(int peerId, int attempt)
+    {
+        if (attempt >= MAX_CONNECT_ATTEMPTS) {
+            error("Giving up on peer " + peerId + ".");
+            peerAddresses.remove(peerId);
+            return;
+        }
+        if (!connecting.add(peerId))
+            return;
+        eventLoop.schedule(connectBackoffMillis(attempt), () -> connect(peerId, attempt));
+    }
+
+    // Start connecting to a peer we marked as connecting, unless we no longer need to
+    private void connect(int peerId, int attempt)
+    {
+        InetSocketAddress peerAddress = peerAddresses.get(peerId);
+        if (exiting || peers.containsKey(peerId) || peerAddress == null) {
+            connecting.remove(peerId);
+            return;
+        }
+        // Host names from PEERS messages are looked up the first time we connect, off the event loop so a slow resolver stalls nobody
+        if (peerAddress.isUnresolved()) {
+            resolveAndConnect(peerId, peerAddress, attempt);
+            return;
+        }
+        if (config.threadPerConnection) {
+            connectOnThread(peerId, peerAddress, attempt);
+            return;
+        }
+        // The connection finishes in the event loop, once the selector says it is connectable
+        SocketChannel peerChannel = null;
+        try {
+            peerChannel = SocketChannel.open();
+            peerChannel.configureBlocking(false);
+            PeerConnection peer = createPeer(peerChannel, peerId, true);
+            peer.connectAttempt = attempt;
+            SelectionKey key = peerChannel.register(eventLoop.selector(), SelectionKey.OP_CONNECT, peer);
+            if (peerChannel.connect(peerAddress))
+                finishConnection(key, peer);
+            else
+                eventLoop.schedule(CONNECT_TIMEOUT_MILLIS, () -> checkConnectTimeout(peer));
+        } catch (IOException | UnresolvedAddressException e) {
+            error("Could not connect to peer " + peerId + " at " + peerAddress + ". Retrying...");
+            closeChannel(peerChannel);
+            connecting.remove(peerId);
+            scheduleConnect(peerId, attempt + 1);
+        }
+    }
+
+    // Look up a peer's host name on a thread of its own, then connect from the event loop, or try again later if it can't be found
+    private void resolveAndConnect(int peerId, InetSocketAddress peerAddress, int attempt)
+    {
+        ConnectionThreads.startThread("peer-" + id + "-resolve", () -> {
+            InetSocketAddress resolvedAddress = new InetSocketAddress(peerAddress.getHostString(), peerAddress.getPort());
+            eventLoop.execute(() -> {
+                if (resolvedAddress.isUnresolved()) {
+                    error("Could not resolve " + peerAddress.getHostString() + " for peer " + peerId + ". Retrying...");
+                    connecting.remove(peerId);
+                    scheduleConnect(peerId, attempt + 1);
+                    return;
+                }
+                peerAddresses.replace(peerId, peerAddress, resolvedAddress);
+                connect(peerId, attempt);
+            });
+        });
+    }
+
+    // Give up on a connection that is still being set up, and try again later
+    private void checkConnectTimeout(PeerConnection peer)
+    {
+        if (peer.closed || !peer.codec.channel().isConnectionPending())
+            return;
+        error("Connecting to peer " + peer.peerId + " timed out. Retrying...");
+        dropConnection(peer, false);
+        connecting.remove(peer.peerId);
+        scheduleConnect(peer.peerId, peer.connectAttempt + 1);
+    }
+
+    // Connect to a peer with a blocking connect on a thread of its own, then carry on in the event loop
+    private void connectOnThread(int peerId, InetSocketAddress peerAddress, int attempt)
+    {
+        ConnectionThreads.startThread("peer-" + id + "-connect", () -> {
+            SocketChannel peerChannel = null;
             try {
-                peerSocket = new Socket(peerAddress, peerPort);
-                break;
+                peerChannel = SocketChannel.open();
+                peerChannel.socket().connect(peerAddress, CONNECT_TIMEOUT_MILLIS);
             } catch (IOException e) {
-                error("Could not connect to peer " + peerId + " at " + peerAddress + ":" + peerPort + ". Retrying...");
+                closeChannel(peerChannel);
+                eventLoop.execute(() -> {
+                    error("Could not connect to peer " + peerId + " at " + peerAddress + ". Retrying...");
+                    connecting.remove(peerId);
+                    scheduleConnect(peerId, attempt + 1);
+                });
+                return;
             }
+            SocketChannel connectedChannel = peerChannel;
+            eventLoop.execute(() -> {
+                connecting.remove(peerId);
+                if (exiting) {
+                    closeChannel(connectedChannel);
+                    return;
+                }
+                PeerConnection peer = initializePeer(connectedChannel, peerId);
+                peer.connectAttempt = attempt;
+                log("Peer " + id + " makes a connection to Peer " + peerId + ".");
+            });
+        });
+    }
+
+    // Close a channel we are giving up on, if there is one
+    private void closeChannel(SocketChannel peerChannel)
+    {
+        if (peerChannel == null)
+            return;
+        try {
+            peerChannel.close();
+        } catch (IOException e) {
+            error("Error closing connection.");
         }
-        peerIds.put(peerSocket, peerId);
-        initializePeer(peerSocket);
-        log("Peer " + id + " makes a connection to Peer " + peerId + ".");
     }
 
-    // Expect handshakes from peers
-    public static void listenForConnections()
+    // Complete a background connection, or try again later if it failed
+    private void finishConnection(SelectionKey key, PeerConnection peer)
     {
+        connecting.remove(peer.peerId);
+        SocketChannel peerChannel = peer.codec.channel();
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
-            for (int i = 0; i < numConnectionsToListenFor; i++) {
-                Socket peerSocket = serverSocket.accept();
-                initializePeer(peerSocket);
-            }
-            serverSocket.close();
+            peerChannel.finishConnect();
+            peerChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            error("Could not connect to peer " + peer.peerId + ". Retrying...");
+            dropConnection(peer, false);
+            scheduleConnect(peer.peerId, peer.connectAttempt + 1);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        sendMessage(peer, new HandshakeMessage(id));
+        log("Peer " + id + " makes a connection to Peer " + peer.peerId + ".");
+    }
+
+    // Accept connections from any peer for as long as we run, connections are accepted by the event loop
+    public void listenForConnections()
+    {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            // A port of 0 picks any free one, which is the one we tell other peers about
+            port = ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(eventLoop.selector(), SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             error("Error listening for connections.");
         }
     }
 
-    public static void initializePeer(Socket peerSocket)
+    // Accept a pending connection, the peer's ID arrives with its handshake
+    private void acceptConnection()
     {
         try {
-            ObjectOutputStream peerOut = new ObjectOutputStream(peerSocket.getOutputStream());
-            ObjectInputStream peerIn = new ObjectInputStream(peerSocket.getInputStream());
-            peerOut.flush();
-            peerOutStreams.put(peerSocket, peerOut);
-            peerInStreams.put(peerSocket, peerIn);
-            peerBitfields.put(peerSocket, new BitSet(numPieces));
-            peerDownloadRates.put(peerSocket, 0);
-            pendingPieces.put(peerSocket, -1);
-            peerSockets.add(peerSocket);
-            sendMessage(peerOut, new HandshakeMessage(id));
+            SocketChannel peerChannel = serverChannel.accept();
+            if (peerChannel == null)
+                return;
+            initializePeer(peerChannel, -1);
+        } catch (IOException e) {
+            error("Error accepting connection.");
+        }
+    }
+
+    // Set up the state for a new connection, which rides along with its selection key
+    private PeerConnection createPeer(SocketChannel peerChannel, int peerId, boolean outbound)
+    {
+        PeerConnection peer = new PeerConnection(new MessageCodec(peerChannel, maxMessageLength()), peerId, outbound, numPieces, maxOutstandingRequests, MAX_QUEUED_UPLOADS);
+        peer.uploadLimiter.setRate(config.maxPeerUploadRate);
+        peer.downloadLimiter.setRate(config.maxPeerDownloadRate);
+        // Give up on the connection if the handshake doesn't arrive in time, this may run before the loop has started
+        eventLoop.execute(() -> eventLoop.schedule(IDLE_TIMEOUT_MILLIS, () -> checkHandshakeTimeout(peer)));
+        return peer;
+    }
+
+    // Length of the largest message a peer may send us: a PIECE with a whole block, a HAVE_MULTI listing every piece,
+    // a full bitfield or a peer list, so a bogus length prefix can't have us allocate a huge buffer
+    private int maxMessageLength()
+    {
+        int maxPayload = Math.max(8 + blockSize, MAX_PEER_LIST_LENGTH);
+        maxPayload = Math.max(maxPayload, BitfieldCodec.fixedLength(numPieces));
+        maxPayload = (int)Math.min(Integer.MAX_VALUE - 5, Math.max(maxPayload, 4L * numPieces));
+        return 1 + maxPayload;
+    }
+
+    // Drop a connection that never finished its handshake, trying again if we opened it
+    private void checkHandshakeTimeout(PeerConnection peer)
+    {
+        if (peer.closed || (peer.peerId != -1 && peers.get(peer.peerId) == peer))
+            return;
+        error("Handshake with peer " + peer.peerId + " timed out.");
+        idleDisconnectCount.increment();
+        dropConnection(peer, false);
+        if (peer.outbound && !exiting)
+            scheduleConnect(peer.peerId, peer.connectAttempt + 1);
+    }
+
+    // Start talking to a peer over a connected channel, we know the peer's ID if we opened the connection
+    public PeerConnection initializePeer(SocketChannel peerChannel, int peerId)
+    {
+        PeerConnection peer = createPeer(peerChannel, peerId, peerId != -1);
+        try {
+            peerChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (config.threadPerConnection) {
+                peerChannel.configureBlocking(true);
+                startThreads(peer);
+            } else {
+                peerChannel.configureBlocking(false);
+                peerChannel.register(eventLoop.selector(), SelectionKey.OP_READ, peer);
+            }
+            sendMessage(peer, new HandshakeMessage(id));
         } catch (IOException e) {
             error("Error initializing peer.");
         }
+        return peer;
+    }
+
+    // Give a connection its own reader and writer threads, everything they read is handled on the event loop
+    private void startThreads(PeerConnection peer)
+    {
+        threadedConnections.add(peer);
+        peer.threads = new ConnectionThreads(peer.codec, eventLoop, new ConnectionThreads.Handler() {
+            public void received(List<Object> messages, int bytesRead)
+            {
+                receiveMessages(peer, messages, bytesRead);
+            }
+
+            public void drained()
+            {
+                servePendingUploads(peer);
+            }
+
+            public void failed()
+            {
+                dropConnection(peer, true);
+            }
+        }, "peer-" + id + "-connection", finishedConnectionCpuNanos);
     }
 
-    // Send a generic message with indicator byte
-    public static void sendMessage(ObjectOutputStream out, Object message)
+    // Send a generic message using the binary framing
+    public void sendMessage(PeerConnection peer, Object message)
     {
+        MessageCodec codec = peer.codec;
+        if (message instanceof HandshakeMessage) {
+            codec.writeHandshake((HandshakeMessage)message);
+        } else {
+            Message sentMessage = (Message)message;
+            codec.writeMessage(sentMessage);
+            recordSent(peer, sentMessage.type, 4 + sentMessage.length);
+        }
+        flushMessages(peer);
+    }
+
+    // Count a message we queued for a peer, both for the peer and for all peers together
+    private void recordSent(PeerConnection peer, byte type, long bytes)
+    {
+        peer.stats.recordSent(type, bytes);
+        messageStats.recordSent(type, bytes);
+    }
+
+    // Write out whatever is queued for a peer, asking the selector to tell us when the socket has room for the rest
+    private void flushMessages(PeerConnection peer)
+    {
+        // Connections with their own threads are written by their writer thread
+        if (peer.threads != null) {
+            peer.threads.wakeWriter();
+            return;
+        }
+        MessageCodec codec = peer.codec;
+        SelectionKey key = codec.channel().keyFor(eventLoop.selector());
+        if (key == null || !key.isValid())
+            return;
         try {
-            // Write 1 byte to keep ObjectInputStream.available() from returning 0 when there is a message
-            out.writeByte(0xff);
-            out.writeObject(message);
-            out.flush();
+            // Leave reads off while the peer is over its download limit
+            int interestOps = peer.downloadThrottled ? 0 : SelectionKey.OP_READ;
+            if (codec.flush())
+                interestOps |= SelectionKey.OP_WRITE;
+            if (key.interestOps() != interestOps)
+                key.interestOps(interestOps);
         } catch (IOException e) {
             error("Error sending message.");
+            closeConnection(key);
         }
     }
 
-    // Check if there is a message ready, discard indicator byte
-    public static boolean hasMessage(ObjectInputStream in)
+    // Tear down a broken connection
+    private void closeConnection(SelectionKey key)
     {
+        dropConnection((PeerConnection)key.attachment(), true);
+    }
+
+    // Close a connection and give back everything that was waiting on it, reconnecting if it is our job to
+    private void dropConnection(PeerConnection peer, boolean reconnect)
+    {
+        if (peer.closed)
+            return;
+        peer.closed = true;
+        SelectionKey key = peer.codec.channel().keyFor(eventLoop.selector());
+        if (key != null)
+            key.cancel();
+        // Closing the channel also gets a connection's own threads out of any read or write they are blocked in
+        if (peer.threads != null) {
+            peer.threads.close();
+            threadedConnections.remove(peer);
+        }
         try {
-            if (in.available() > 0) {
-                in.readByte();
-                return true;
-            }
+            peer.codec.channel().close();
         } catch (IOException e) {
-            e.printStackTrace();
+            error("Error closing connection.");
+        }
+        peer.codec.discardPendingWrites();
+        // Only forget the peer if this is the connection registered for it
+        if (peer.peerId == -1 || !peers.remove(peer.peerId, peer))
+            return;
+        error("Lost connection to peer " + peer.peerId + ".");
+        picker.peerRemoved(peer.bitfield);
+        preferredNeighbors.remove(peer);
+        if (optimisticallyUnchokedNeighbor == peer)
+            optimisticallyUnchokedNeighbor = null;
+        // Put the blocks we were waiting on back up for grabs, and let the peers still unchoking us pick them up
+        while (!peer.requests.isEmpty())
+            cancelRequest(peer.requests.poll());
+        for (PeerConnection otherPeer : peers.values())
+            TryRequestingPiece(otherPeer);
+        // The peer with the higher ID does the reconnecting, the other end just waits for it
+        if (reconnect && id > peer.peerId && !exiting)
+            scheduleConnect(peer.peerId, 0);
+        // The peers still connected may all be finished
+        checkIfAllPeersFinished();
+    }
+
+    // This thread does the real work
+    public void worker()
+    {
+        // Set up the timers for updating the neighbors we upload to
+        eventLoop.scheduleAtFixedRate(unchokingInterval * 1000L, () -> updatePreferredNeighbors());
+        eventLoop.scheduleAtFixedRate(optimisticUnchokingInterval * 1000L, () -> updateOptimisticallyUnchokedNeighbor());
+        // Set up the timer for saving our progress
+        eventLoop.scheduleAtFixedRate(STATE_SAVE_INTERVAL_MILLIS, () -> savePieceState());
+        // Set up the timer for picking up rate limit changes
+        eventLoop.scheduleAtFixedRate(CONFIG_RELOAD_INTERVAL_MILLIS, () -> reloadRateLimits());
+        // Set up the timer for writing out the metrics
+        eventLoop.scheduleAtFixedRate(METRICS_SNAPSHOT_INTERVAL_MILLIS, () -> writeMetricsSnapshot());
+        // Set up the timers for noticing stalled and silent peers, and for keeping our own connections from looking silent
+        eventLoop.scheduleAtFixedRate(TIMEOUT_CHECK_INTERVAL_MILLIS, () -> checkTimeouts());
+        eventLoop.scheduleAtFixedRate(KEEP_ALIVE_INTERVAL_MILLIS, () -> sendKeepAlives());
+        // Main loop, only wakes up when a socket is ready or a timer is due, until we are closed
+        try {
+            eventLoop.run(key -> handleKey(key));
+        } finally {
+            shutdown();
         }
-        return false;
     }
 
-    // Read in the generic message
-    public static Object receiveMessage(ObjectInputStream in)
+    // Close every connection and file once the event loop has stopped, writing out what we have
+    private void shutdown()
     {
+        exiting = true;
+        // Count what the threads used before stopping them
+        finalCpuTimeNanos = cpuTimeNanos();
+        // Close the connections and stop listening
+        for (PeerConnection peer : threadedConnections) {
+            peer.threads.close();
+            closeChannel(peer.codec.channel());
+        }
+        for (SelectionKey key : eventLoop.selector().keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                error("Error closing connection.");
+            }
+        }
         try {
-            return in.readObject();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            if (serverChannel != null)
+                serverChannel.close();
+            eventLoop.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            error("Error closing event loop.");
         }
-        return null;
+        // Save our progress and close the files, once the read cache is done with them
+        if (readCache != null)
+            readCache.shutdown();
+        savePieceState();
+        try {
+            if (storage != null)
+                storage.close();
+            if (pieceState != null)
+                pieceState.close();
+        } catch (IOException e) {
+            error("Error closing file '" + fileName + "'");
+        }
+        // Write a last snapshot, so it shows how things ended
+        writeMetricsSnapshot();
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                error("Failed to unregister metrics from JMX.");
+            }
+        }
+        // Stop the other threads
+        verifier.shutdown();
+        logger.close();
+        closedLatch.countDown();
     }
 
-    // This thread does the real work
-    public static void worker()
+    // Handle a channel the selector reported as ready
+    private void handleKey(SelectionKey key)
     {
-        // Main loop
-        while (true) {
-            // If we have the file and have connected to other peers, check if all peers have finished
-            if (hasFile && !peerSockets.isEmpty()) {
-                boolean allPeersFinished = true;
-                for (Socket peerSocket : peerSockets) {
-                    if (peerBitfields.get(peerSocket).cardinality() < numPieces) {
-                        allPeersFinished = false;
-                        break;
-                    }
-                }
-                // If all peers have finished, wait for a second to let messages finish propagating, then exit
-                if (allPeersFinished) {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    System.exit(0);
-                }
-            }       
-            // Check if it is time to update preferred neighbors
-            if (timeToUpdatePreferredNeighbors) {
-                timeToUpdatePreferredNeighbors = false;
-                updatePreferredNeighbors();
-            }
-            // Check if it is time to update optimistically unchoked neighbor
-            if (timeToUpdateOptimisticallyUnchokedNeighbor) {
-                timeToUpdateOptimisticallyUnchokedNeighbor = false;
-                updateOptimisticallyUnchokedNeighbor();
-            }
-            // Check for messages from each peer
-            for (Socket peerSocket : peerSockets) {
-                ObjectInputStream in = peerInStreams.get(peerSocket);
-                // Only proceed if there is a message ready, otherwise, skip to next peer
-                if (hasMessage(in)) {
-                    // Read the message
-                    Object messageObject = receiveMessage(in);
-                    // Handshake messages are handled differently
-                    if (messageObject instanceof HandshakeMessage) {
-                        HandshakeMessage handshakeMessage = (HandshakeMessage)messageObject;
-                        handleHandshakeMessage(handshakeMessage, peerSocket);
-                    // All other messages are handled the same way
-                    } else {
-                        Message message = (Message)messageObject;
-                        if (message.type == CHOKE) {
-                            handleChokeMessage(message, peerSocket);
-                        } else if (message.type == UNCHOKE) {
-                            handleUnchokeMessage(message, peerSocket);
-                        } else if (message.type == INTERESTED) {
-                            handleInterestedMessage(message, peerSocket);
-                        } else if (message.type == NOT_INTERESTED) {
-                            handleNotInterestedMessage(message, peerSocket);
-                        } else if (message.type == HAVE) {
-                            handleHaveMessage(message, peerSocket);
-                        } else if (message.type == BITFIELD) {
-                            handleBitfieldMessage(message, peerSocket);
-                        } else if (message.type == REQUEST) {
-                            handleRequestMessage(message, peerSocket);
-                        } else if (message.type == PIECE) {
-                            handlePieceMessage(message, peerSocket);
-                        }
+        // New connections from later peers
+        if (key.isAcceptable()) {
+            acceptConnection();
+            return;
+        }
+        PeerConnection peer = (PeerConnection)key.attachment();
+        try {
+            // Connections we opened in the background
+            if (key.isConnectable()) {
+                finishConnection(key, peer);
+                return;
+            }
+            // Finish writing anything that didn't fit in the socket earlier, then move on to queued uploads
+            if (key.isWritable()) {
+                flushMessages(peer);
+                servePendingUploads(peer);
+            }
+            // Read what has arrived and handle every complete message
+            if (key.isValid() && key.isReadable()) {
+                try {
+                    int bytesRead = peer.codec.fill();
+                    if (bytesRead > 0)
+                        peer.lastReceived = System.nanoTime();
+                    downloadLimiter.consume(bytesRead);
+                    peer.downloadLimiter.consume(bytesRead);
+                    Object messageObject;
+                    while (!peer.closed && (messageObject = peer.codec.read()) != null) {
+                        if (config.simulatedLatencyMillis > 0)
+                            receiveMessageLater(messageObject, peer);
+                        else
+                            receiveMessage(messageObject, peer);
                     }
+                } catch (IOException e) {
+                    closeConnection(key);
+                    return;
                 }
+                if (peer.closed)
+                    return;
+                throttleDownload(peer, key);
             }
+        } catch (RuntimeException e) {
+            failConnection(peer, e);
+        }
+    }
+
+    // Drop a connection whose messages we failed to handle, so one bad peer can't take the event loop and every other connection with it
+    private void failConnection(PeerConnection peer, RuntimeException e)
+    {
+        error("Error handling peer " + peer.peerId + ": " + e + ".");
+        dropConnection(peer, false);
+    }
+
+    // If we are over a download limit, stop reading from the peer until the limit allows more
+    // (the key is null for a connection with its own threads, whose reader waits to be told to go on after every read)
+    private void throttleDownload(PeerConnection peer, SelectionKey key)
+    {
+        // Refill both buckets before checking either, so both know how long until they are out of debt
+        long now = System.nanoTime();
+        if (downloadLimiter.isReady(now) & peer.downloadLimiter.isReady(now)) {
+            if (key == null)
+                peer.threads.resumeReading();
+            return;
         }
+        long delay = Math.max(downloadLimiter.delayMillis(), peer.downloadLimiter.delayMillis());
+        peer.downloadThrottled = true;
+        if (key != null)
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        eventLoop.schedule(delay, () -> {
+            peer.downloadThrottled = false;
+            if (key == null)
+                peer.threads.resumeReading();
+            else if (key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        });
     }
 
-    public static void handleHandshakeMessage(HandshakeMessage handshakeMessage, Socket peerSocket)
+    // Handle the messages a connection's reader thread got from one read, then let it read again
+    private void receiveMessages(PeerConnection peer, List<Object> messages, int bytesRead)
     {
+        if (peer.closed)
+            return;
+        if (bytesRead > 0)
+            peer.lastReceived = System.nanoTime();
+        downloadLimiter.consume(bytesRead);
+        peer.downloadLimiter.consume(bytesRead);
+        try {
+            for (Object messageObject : messages) {
+                if (peer.closed)
+                    return;
+                if (config.simulatedLatencyMillis > 0)
+                    receiveMessageLater(messageObject, peer);
+                else
+                    receiveMessage(messageObject, peer);
+            }
+            if (peer.closed)
+                return;
+            throttleDownload(peer, null);
+        } catch (RuntimeException e) {
+            failConnection(peer, e);
+        }
+    }
+
+    // Hand a decoded message to its handler after the simulated latency, in the order the messages arrived
+    private void receiveMessageLater(Object messageObject, PeerConnection peer)
+    {
+        Object receivedMessage = copyMessage(messageObject);
+        eventLoop.schedule(config.simulatedLatencyMillis, () -> {
+            if (peer.closed)
+                return;
+            try {
+                receiveMessage(receivedMessage, peer);
+            } catch (RuntimeException e) {
+                failConnection(peer, e);
+            }
+        });
+    }
+
+    // Copy a decoded message, the codec reuses its message and payload buffer for the next one
+    public static Object copyMessage(Object messageObject)
+    {
+        if (!(messageObject instanceof Message))
+            return messageObject;
+        Message message = (Message)messageObject;
+        return new Message(message.type, Arrays.copyOf(message.payload, message.length - 1));
+    }
+
+    // Hand a decoded message to its handler
+    public void receiveMessage(Object messageObject, PeerConnection peer)
+    {
+        // Handshake messages are handled differently
+        if (messageObject instanceof HandshakeMessage) {
+            HandshakeMessage handshakeMessage = (HandshakeMessage)messageObject;
+            handleHandshakeMessage(handshakeMessage, peer);
+        // All other messages are handled the same way
+        } else {
+            Message message = (Message)messageObject;
+            peer.stats.recordReceived(message.type, 4 + message.length);
+            messageStats.recordReceived(message.type, 4 + message.length);
+            // The handlers read fixed fields straight out of the payload, so drop a peer whose message is the wrong size for its type
+            if (!hasValidLength(message)) {
+                error("Malformed message of type " + message.type + " from peer " + peer.peerId + ".");
+                dropConnection(peer, false);
+                return;
+            }
+            if (message.type == CHOKE) {
+                handleChokeMessage(message, peer);
+            } else if (message.type == UNCHOKE) {
+                handleUnchokeMessage(message, peer);
+            } else if (message.type == INTERESTED) {
+                handleInterestedMessage(message, peer);
+            } else if (message.type == NOT_INTERESTED) {
+                handleNotInterestedMessage(message, peer);
+            } else if (message.type == HAVE) {
+                handleHaveMessage(message, peer);
+            } else if (message.type == BITFIELD || message.type == BITFIELD_RUNS || message.type == HAVE_ALL || message.type == HAVE_NONE) {
+                handleBitfieldMessage(message, peer);
+            } else if (message.type == REQUEST) {
+                handleRequestMessage(message, peer);
+            } else if (message.type == PIECE) {
+                handlePieceMessage(message, peer);
+            } else if (message.type == CANCEL) {
+                handleCancelMessage(message, peer);
+            } else if (message.type == HAVE_MULTI) {
+                handleHaveMultiMessage(message, peer);
+            } else if (message.type == PEERS) {
+                handlePeersMessage(message, peer);
+            } else if (message.type == KEEP_ALIVE) {
+                // Nothing to do, the peer is just letting us know it is still there
+            }
+        }
+    }
+
+    // Whether a message's payload is as long as its type calls for, messages of types we don't know are let through and ignored
+    private static boolean hasValidLength(Message message)
+    {
+        int payloadLength = message.length - 1;
+        if (message.type == HAVE)
+            return payloadLength == 4;
+        if (message.type == REQUEST || message.type == CANCEL)
+            return payloadLength == 12;
+        if (message.type == PIECE)
+            return payloadLength >= 8;
+        if (message.type == HAVE_MULTI)
+            return payloadLength % 4 == 0;
+        if (message.type == CHOKE || message.type == UNCHOKE || message.type == INTERESTED || message.type == NOT_INTERESTED
+                || message.type == KEEP_ALIVE || message.type == HAVE_ALL || message.type == HAVE_NONE)
+            return payloadLength == 0;
+        return true;
+    }
+
+    // If we have the file and have connected to other peers, check if all peers have finished
+    private void checkIfAllPeersFinished()
+    {
+        if (exiting || !config.closeWhenDone || !hasFile || peers.isEmpty())
+            return;
+        for (PeerConnection peer : peers.values())
+            if (peer.bitfield.cardinality() < numPieces)
+                return;
+        // If all peers have finished, keep serving for a second to let messages finish propagating, then close
+        exiting = true;
+        eventLoop.schedule(1000, () -> close());
+    }
+
+    public void handleHandshakeMessage(HandshakeMessage handshakeMessage, PeerConnection peer)
+    {
+        // If we opened the connection, make sure we reached the peer we meant to
+        if (peer.peerId != -1 && peer.peerId != handshakeMessage.peerId) {
+            error("Expected peer " + peer.peerId + " but reached peer " + handshakeMessage.peerId + ".");
+            dropConnection(peer, true);
+            return;
+        }
+        // If two connections to the same peer are open, both ends keep the one opened by the peer with the higher ID,
+        // or the newer one if both were opened from the same end (the older one is likely dead)
+        PeerConnection existing = peers.get(handshakeMessage.peerId);
+        if (existing != null && existing != peer) {
+            if (existing.outbound != peer.outbound && existing.outbound == (id > handshakeMessage.peerId)) {
+                dropConnection(peer, false);
+                return;
+            }
+            dropConnection(existing, false);
+        }
         // If we are missing the peer's ID, store it and log the connection
-        if (!peerIds.containsKey(peerSocket)) {
-            peerIds.put(peerSocket, handshakeMessage.peerId);
+        if (peer.peerId == -1) {
+            peer.peerId = handshakeMessage.peerId;
             log("Peer " + id + " is connected from Peer " + handshakeMessage.peerId + ".");
         }
-        // Send bitfield message
-        sendMessage(peerOutStreams.get(peerSocket), new Message(BITFIELD, bitfield.toByteArray()));
+        // Add the peer to the registry
+        peers.put(peer.peerId, peer);
+        // Send bitfield message, in the smallest form the peer takes
+        peer.compactBitfield = handshakeMessage.compactBitfield;
+        sendMessage(peer, BitfieldCodec.encode(bitfield, numPieces, peer.compactBitfield));
+        // Tell the peer about the rest of the swarm
+        sendPeerList(peer);
+    }
+
+    // Send a peer where we and every peer we are connected to can be reached
+    private void sendPeerList(PeerConnection peer)
+    {
+        // Each entry is a peer ID, a port and a host name, we leave our own host name out since the peer knows where we connected from
+        ByteBuffer payload = ByteBuffer.allocate(256);
+        payload = putPeerEntry(payload, id, port, "");
+        for (PeerConnection otherPeer : peers.values()) {
+            InetSocketAddress otherAddress = peerAddresses.get(otherPeer.peerId);
+            if (otherPeer == peer || otherAddress == null)
+                continue;
+            // Leave out whoever doesn't fit, the peer can learn about them from someone else
+            String host = otherAddress.getHostString();
+            if (payload.position() + 10 + host.getBytes(StandardCharsets.UTF_8).length > MAX_PEER_LIST_LENGTH)
+                break;
+            payload = putPeerEntry(payload, otherPeer.peerId, otherAddress.getPort(), host);
+        }
+        sendMessage(peer, new Message(PEERS, Arrays.copyOf(payload.array(), payload.position())));
+    }
+
+    // Add a peer list entry, growing the buffer if needed
+    private ByteBuffer putPeerEntry(ByteBuffer payload, int peerId, int peerPort, String host)
+    {
+        byte[] hostBytes = host.getBytes(StandardCharsets.UTF_8);
+        if (payload.remaining() < 10 + hostBytes.length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + 10 + hostBytes.length));
+            payload.flip();
+            payload = larger.put(payload);
+        }
+        return payload.putInt(peerId).putInt(peerPort).putShort((short)hostBytes.length).put(hostBytes);
+    }
+
+    public void handlePeersMessage(Message message, PeerConnection peer)
+    {
+        ByteBuffer payload = ByteBuffer.wrap(message.payload, 0, message.length - 1);
+        int numNewPeers = 0;
+        while (payload.remaining() >= 10) {
+            int peerId = payload.getInt();
+            int peerPort = payload.getInt();
+            int hostLength = payload.getShort() & 0xffff;
+            if (payload.remaining() < hostLength)
+                return;
+            String host = new String(message.payload, payload.position(), hostLength, StandardCharsets.UTF_8);
+            payload.position(payload.position() + hostLength);
+            if (peerId == id || peerPort <= 0 || peerPort > 65535)
+                continue;
+            // The sender leaves out its own host name, so use the address it connected from
+            if (peerId == peer.peerId) {
+                InetSocketAddress remoteAddress = (InetSocketAddress)peer.codec.channel().socket().getRemoteSocketAddress();
+                if (remoteAddress != null)
+                    peerAddresses.put(peerId, new InetSocketAddress(remoteAddress.getAddress(), peerPort));
+                continue;
+            }
+            // Remember peers we haven't heard of, up to a limit per message, their host names are looked up when we connect
+            if (!peerAddresses.containsKey(peerId)) {
+                if (numNewPeers == MAX_NEW_PEERS_PER_MESSAGE)
+                    continue;
+                numNewPeers++;
+                peerAddresses.put(peerId, InetSocketAddress.createUnresolved(host, peerPort));
+            }
+            // Connect to peers we haven't met yet, unless we have as many connections as we want
+            if (!peers.containsKey(peerId) && (config.maxConnections == 0 || peers.size() + connecting.size() < config.maxConnections))
+                scheduleConnect(peerId, 0);
+        }
     }
 
-    public static void handleChokeMessage(Message message, Socket peerSocket)
+    public void handleChokeMessage(Message message, PeerConnection peer)
     {
-        // Remove the peer from the list of peers we are unchoked by
-        unchokedBy.remove(peerSocket);
-        log("Peer " + id + " is choked by " + peerIds.get(peerSocket) + ".");
+        // Mark the peer as choking us
+        peer.unchokingUs = false;
+        log("Peer " + id + " is choked by " + peer.peerId + ".");
+        // The peer drops our outstanding requests, so put those blocks back up for grabs
+        while (!peer.requests.isEmpty())
+            cancelRequest(peer.requests.poll());
+        // Let the peers still unchoking us pick them up
+        for (PeerConnection otherPeer : peers.values())
+            TryRequestingPiece(otherPeer);
     }
 
-    public static void handleUnchokeMessage(Message message, Socket peerSocket)
+    public void handleUnchokeMessage(Message message, PeerConnection peer)
     {
-        // Add the peer to the list of peers we are unchoked by
-        unchokedBy.add(peerSocket);
-        log("Peer " + id + " is unchoked by " + peerIds.get(peerSocket) + ".");
+        // Mark the peer as unchoking us
+        peer.unchokingUs = true;
+        log("Peer " + id + " is unchoked by " + peer.peerId + ".");
         // Try requesting a piece from the peer
-        TryRequestingPiece(peerSocket);
+        TryRequestingPiece(peer);
     }
 
-    public static void handleInterestedMessage(Message message, Socket peerSocket)
+    public void handleInterestedMessage(Message message, PeerConnection peer)
     {
-        // Add the peer to the list of interested peers
-        interestedPeers.add(peerSocket);
-        log("Peer " + id + " received the 'interested' message from " + peerIds.get(peerSocket) + ".");
+        // Mark the peer as interested
+        peer.interested = true;
+        log("Peer " + id + " received the 'interested' message from " + peer.peerId + ".");
     }
 
-    public static void handleNotInterestedMessage(Message message, Socket peerSocket)
+    public void handleNotInterestedMessage(Message message, PeerConnection peer)
     {
-        // Remove the peer from the list of interested peers
-        interestedPeers.remove(peerSocket);
-        log("Peer " + id + " received the 'not interested' message from " + peerIds.get(peerSocket) + ".");
+        // Mark the peer as not interested
+        peer.interested = false;
+        log("Peer " + id + " received the 'not interested' message from " + peer.peerId + ".");
     }
 
-    private static void handleHaveMessage(Message message, Socket peerSocket)
+    private void handleHaveMessage(Message message, PeerConnection peer)
     {
         // Get the piece index from the message
         int pieceIndex = ByteBuffer.wrap(message.payload).getInt();
-        // Set the bit in the peer's bitfield
-        peerBitfields.get(peerSocket).set(pieceIndex);
+        receiveHave(pieceIndex, peer);
+        // The peer may have just finished
+        checkIfAllPeersFinished();
+    }
+
+    private void handleHaveMultiMessage(Message message, PeerConnection peer)
+    {
+        // The payload is a list of piece indexes, each handled like its own have message
+        ByteBuffer payload = ByteBuffer.wrap(message.payload, 0, message.length - 1);
+        while (payload.remaining() >= 4)
+            receiveHave(payload.getInt(), peer);
+        // The peer may have just finished
+        checkIfAllPeersFinished();
+    }
+
+    // Record that a peer has a piece
+    private void receiveHave(int pieceIndex, PeerConnection peer)
+    {
+        if (pieceIndex < 0 || pieceIndex >= numPieces)
+            return;
+        // Set the bit in the peer's bitfield, and count one more holder of the piece
+        if (!peer.bitfield.get(pieceIndex)) {
+            peer.bitfield.set(pieceIndex);
+            picker.pieceAdded(pieceIndex);
+        }
         // If we don't have the piece, send interested message
-        if (!bitfield.get(pieceIndex)) {
-            if (interestingPeers.add(peerSocket))
-                sendMessage(peerOutStreams.get(peerSocket), new Message(INTERESTED));
+        if (!bitfield.get(pieceIndex) && !peer.interesting) {
+            peer.interesting = true;
+            sendMessage(peer, new Message(INTERESTED));
         }
         // Log the message
-        log("Peer " + id + " received the 'have' message from " + peerIds.get(peerSocket) + " for the piece " + pieceIndex + ".");
+        if (logger.isLoggable(AsyncLogger.DEBUG))
+            log(AsyncLogger.DEBUG, "Peer " + id + " received the 'have' message from " + peer.peerId + " for the piece " + pieceIndex + ".");
     }
 
-    public static void handleBitfieldMessage(Message message, Socket peerSocket)
+    public void handleBitfieldMessage(Message message, PeerConnection peer)
     {
-        // Store the peer's bitfield
-        BitSet peerBitfield = BitSet.valueOf(message.payload);
-        peerBitfields.put(peerSocket, peerBitfield);
-        // Make a copy of the peer's bitfield and remove all bits we already have
-        BitSet peerBitfieldCopy = (BitSet)peerBitfield.clone();
-        peerBitfieldCopy.andNot(bitfield);
-        // If anything is left, send interested message
-        if (!peerBitfieldCopy.isEmpty())
-            if (interestingPeers.add(peerSocket))
-                sendMessage(peerOutStreams.get(peerSocket), new Message(INTERESTED));
+        // Replace the peer's bitfield in place, and update how many holders each piece has
+        picker.peerRemoved(peer.bitfield);
+        // A truncated announcement is a protocol violation like any other malformed message, its counts are already out of the index
+        // so the half-decoded bitfield is cleared before dropping the peer takes it out again
+        if (!BitfieldCodec.decode(message, peer.bitfield, numPieces)) {
+            error("Truncated bitfield from peer " + peer.peerId + ".");
+            peer.bitfield.clear();
+            dropConnection(peer, false);
+            return;
+        }
+        picker.peerAdded(peer.bitfield);
+        // If the peer has a piece we don't, send interested message
+        if (hasPieceWeNeed(peer.bitfield)) {
+            if (!peer.interesting) {
+                peer.interesting = true;
+                sendMessage(peer, new Message(INTERESTED));
+            }
         // Otherwise, send not interested message
-        else {
-            if (interestingPeers.remove(peerSocket))
-                sendMessage(peerOutStreams.get(peerSocket), new Message(NOT_INTERESTED));
+        } else {
+            if (peer.interesting) {
+                peer.interesting = false;
+                sendMessage(peer, new Message(NOT_INTERESTED));
+            }
         }
+        // The peer may have joined with the whole file
+        checkIfAllPeersFinished();
     }
 
-    public static void handleRequestMessage(Message message, Socket peerSocket)
+    public void handleRequestMessage(Message message, PeerConnection peer)
     {
-        // Get the piece index from the message
-        int pieceIndex = ByteBuffer.wrap(message.payload).getInt();
-        // Send the piece
-        byte[] payload = new byte[4 + fileData[pieceIndex].length];
-        System.arraycopy(ByteBuffer.allocate(4).putInt(pieceIndex).array(), 0, payload, 0, 4);
-        System.arraycopy(fileData[pieceIndex], 0, payload, 4, fileData[pieceIndex].length);
-        sendMessage(peerOutStreams.get(peerSocket), new Message(PIECE, payload));
-        // Increment the peer's download rate
-        peerDownloadRates.put(peerSocket, peerDownloadRates.get(peerSocket) + 1);
+        // Get the piece index, block offset and block length from the message
+        ByteBuffer payload = ByteBuffer.wrap(message.payload);
+        int pieceIndex = payload.getInt();
+        int offset = payload.getInt();
+        int length = payload.getInt();
+        // Only serve peers we have unchoked, anything else was sent before they saw our choke
+        if (peer.choked)
+            return;
+        // Only serve whole blocks of pieces we actually have
+        if (!picker.isValidBlock(pieceIndex, offset, length) || !bitfield.get(pieceIndex))
+            return;
+        // Queue the block, it is sent once everything ahead of it has gone out so a cancel can still catch it
+        int block = picker.blockId(pieceIndex, offset);
+        if (peer.uploads.isFull() || peer.uploads.contains(block))
+            return;
+        peer.uploads.add(block);
+        uploadQueueDepth.record(peer.uploads.size());
+        servePendingUploads(peer);
     }
 
-    public static void handlePieceMessage(Message message, Socket peerSocket)
+    public void handleCancelMessage(Message message, PeerConnection peer)
     {
-        // Get the piece index from the message
-        int pieceIndex = ByteBuffer.wrap(message.payload).getInt();
-        // Get the piece data from the message
-        byte[] pieceData = new byte[message.payload.length - 4];
-        System.arraycopy(message.payload, 4, pieceData, 0, pieceData.length);
-        // Store the piece data
-        fileData[pieceIndex] = pieceData;
-        // Set the bit in the bitfield
+        // Get the piece index, block offset and block length from the message
+        ByteBuffer payload = ByteBuffer.wrap(message.payload);
+        int pieceIndex = payload.getInt();
+        int offset = payload.getInt();
+        int length = payload.getInt();
+        // Drop the block if we haven't started sending it yet
+        if (picker.isValidBlock(pieceIndex, offset, length))
+            peer.uploads.remove(picker.blockId(pieceIndex, offset));
+    }
+
+    // Send queued blocks to a peer whenever its socket has nothing else waiting
+    private void servePendingUploads(PeerConnection peer)
+    {
+        MessageCodec codec = peer.codec;
+        RequestQueue uploads = peer.uploads;
+        while (!uploads.isEmpty() && !codec.hasPendingWrites() && !peer.uploadThrottled) {
+            // If we are over an upload limit, come back once the limit allows more instead of holding up the loop
+            // (both buckets are refilled before checking either, so both know how long until they are out of debt)
+            long now = System.nanoTime();
+            if (!(uploadLimiter.isReady(now) & peer.uploadLimiter.isReady(now))) {
+                long delay = Math.max(uploadLimiter.delayMillis(), peer.uploadLimiter.delayMillis());
+                peer.uploadThrottled = true;
+                eventLoop.schedule(delay, () -> {
+                    peer.uploadThrottled = false;
+                    servePendingUploads(peer);
+                });
+                return;
+            }
+            int block = uploads.poll();
+            int pieceIndex = picker.pieceOf(block);
+            int offset = picker.offsetOf(block);
+            int length = picker.lengthOf(block);
+            // Write the small header ourselves, then send the block from the read cache if the piece is there
+            codec.beginMessage(PIECE, 8 + length);
+            codec.writeInt(pieceIndex);
+            codec.writeInt(offset);
+            recordSent(peer, PIECE, MessageCodec.HEADER_LENGTH + 8 + length);
+            PieceCache.Entry cached = readCache != null ? readCache.acquire(pieceIndex) : null;
+            if (cached != null) {
+                codec.writeBufferRegion(cached.block(offset, length), () -> readCache.release(cached));
+            } else {
+                // Otherwise have the kernel send the block straight from the files to the socket
+                try {
+                    writeBlockFromFiles(codec, pieceIndex, offset, length);
+                } catch (IOException e) {
+                    // The message is already half written, so the connection can't be used anymore
+                    error("Error reading piece " + pieceIndex + ".");
+                    dropConnection(peer, true);
+                    return;
+                }
+                // Peers ask for the first block of a piece once each, so that counts how many want it
+                if (readCache != null && offset == 0 && readCache.recordRequest(pieceIndex))
+                    readAhead(pieceIndex);
+            }
+            flushMessages(peer);
+            // Count the bytes we sent the peer, against the rate limits too
+            peer.bytesUploaded += length;
+            uploadLimiter.consume(length);
+            peer.uploadLimiter.consume(length);
+        }
+    }
+
+    // Queue a block as regions of the files it lies in, a block may span several files
+    private void writeBlockFromFiles(MessageCodec codec, int pieceIndex, int offset, int length) throws IOException
+    {
+        long position = storage.pieceOffset(pieceIndex) + offset;
+        long end = position + length;
+        while (position < end) {
+            int fileIndex = storage.fileAt(position);
+            long count = Math.min(end, storage.fileEnd(fileIndex)) - position;
+            codec.writeFileRegion(storage.channel(fileIndex), position - storage.fileStart(fileIndex), count);
+            position += count;
+        }
+    }
+
+    // Pull a piece several peers asked for into the read cache, since more are likely to follow,
+    // along with the next few pieces, which are read while the disk is there anyway
+    private void readAhead(int pieceIndex)
+    {
+        for (int i = pieceIndex; i <= pieceIndex + READ_AHEAD_PIECES && i < numPieces; i++)
+            if (bitfield.get(i))
+                readCache.load(i);
+    }
+
+    public void handlePieceMessage(Message message, PeerConnection peer)
+    {
+        // Get the piece index and block offset from the message, the rest is the block data
+        ByteBuffer payload = ByteBuffer.wrap(message.payload);
+        int pieceIndex = payload.getInt();
+        int offset = payload.getInt();
+        int length = message.length - 1 - 8;
+        // Ignore blocks that don't line up with anything we could have asked for
+        if (!picker.isValidBlock(pieceIndex, offset, length))
+            return;
+        int block = picker.blockId(pieceIndex, offset);
+        // Count the bytes the peer sent us, even for blocks we end up not needing
+        peer.bytesDownloaded += length;
+        // Unmark the block as pending, and let a peer that was slow before have a larger window again
+        long sentTime = peer.requests.sentTime(block);
+        if (sentTime != -1) {
+            peer.requests.remove(block);
+            peer.lastBlockReceived = System.nanoTime();
+            requestLatency.record((peer.lastBlockReceived - sentTime) / 1000);
+            if (peer.requests.limit() < peer.requests.capacity())
+                peer.requests.setLimit(peer.requests.limit() + 1);
+        }
+        // If another peer already sent us this block, just keep the window full
+        if (picker.isReceived(block)) {
+            duplicateBlockCount.increment();
+            TryRequestingPiece(peer);
+            return;
+        }
+        // In end game the block may have been requested from other peers too, so call those off
+        if (picker.isEndGame())
+            cancelDuplicateRequests(block, peer);
+        // Write the block data straight to its place in the file
+        try {
+            storage.writeBlock(pieceIndex, offset, message.payload, 8, length);
+        } catch (IOException e) {
+            error("Error writing piece " + pieceIndex + ".");
+            cancelRequest(block);
+            TryRequestingPiece(peer);
+            return;
+        }
+        // Remember who sent part of the piece, in case it turns out to be corrupt
+        HashSet<PeerConnection> contributors = pieceContributors.get(pieceIndex);
+        if (contributors == null)
+            pieceContributors.put(pieceIndex, contributors = new HashSet<PeerConnection>());
+        contributors.add(peer);
+        // Once every block of the piece is here, check it against its hash off the event loop
+        if (picker.blockReceived(block))
+            verifyPiece(pieceIndex, peer);
+        // Keep the window full
+        TryRequestingPiece(peer);
+    }
+
+    // Hand a piece to the verifier, or hold on to it until the verifier's queue has room, so hashing never falls back on the event loop
+    private void verifyPiece(int pieceIndex, PeerConnection peer)
+    {
+        if (verificationsInFlight == PieceVerifier.MAX_QUEUED_VERIFICATIONS) {
+            piecesAwaitingVerification.add(() -> verifyPiece(pieceIndex, peer));
+            return;
+        }
+        verificationsInFlight++;
+        verifier.verify(pieceIndex, metadata, valid -> eventLoop.execute(() -> {
+            // Keep the verifier busy before handling the result
+            verificationsInFlight--;
+            if (!piecesAwaitingVerification.isEmpty())
+                piecesAwaitingVerification.poll().run();
+            handleVerifiedPiece(pieceIndex, valid, peer);
+        }));
+    }
+
+    // Finish a piece once its hash has been checked
+    private void handleVerifiedPiece(int pieceIndex, boolean valid, PeerConnection peer)
+    {
+        HashSet<PeerConnection> contributors = pieceContributors.remove(pieceIndex);
+        // If the piece is corrupt, throw it away, penalize everyone who sent part of it, and request it again
+        if (!valid) {
+            error("Piece " + pieceIndex + " failed verification.");
+            hashFailureCount.increment();
+            picker.pieceFailed(pieceIndex);
+            for (PeerConnection contributor : contributors) {
+                if (++contributor.hashFailures == MAX_HASH_FAILURES)
+                    error("No longer requesting pieces from peer " + contributor.peerId + ".");
+            }
+            for (PeerConnection otherPeer : peers.values())
+                TryRequestingPiece(otherPeer);
+            return;
+        }
+        // Set the bit in the bitfield, and record it for the state file
         bitfield.set(pieceIndex);
-        // Unmark the piece as pending
-        pendingPieces.put(peerSocket, -1);
+        pieceState.pieceCompleted(pieceIndex);
+        numPiecesHave = bitfield.cardinality();
         // Log the message
-        log("Peer " + id + " has downloaded the piece " + pieceIndex + " from " + peerIds.get(peerSocket) + ". Now the number of pieces it has is " + bitfield.cardinality() + ".");
-        // If we are still missing pieces, try requesting another piece from the peer
-        if (bitfield.cardinality() < numPieces)
-            TryRequestingPiece(peerSocket);
-        // Otherwise, we have the whole file!
-        else {
-            writeFile();
+        if (logger.isLoggable(AsyncLogger.DEBUG))
+            log(AsyncLogger.DEBUG, "Peer " + id + " has downloaded the piece " + pieceIndex + " from " + peer.peerId + ". Now the number of pieces it has is " + numPiecesHave + ".");
+        // If that was the last piece, we have the whole file!
+        if (numPiecesHave == numPieces) {
+            savePieceState();
             hasFile = true;
+            completionMillis = (System.nanoTime() - startTime) / 1000000L;
             log("Peer " + id + " has downloaded the complete file.");
         }
-        // Send have message to all peers
-        for (Socket otherPeerSocket : peerSockets)
-            sendMessage(peerOutStreams.get(otherPeerSocket), new Message(HAVE, ByteBuffer.allocate(4).putInt(pieceIndex).array()));
-    }
-
-    // Try requesting a piece from a peer, returns whether or not a piece was requested
-    public static boolean TryRequestingPiece(Socket peerSocket)
-    {
-        // If unchoked by the peer and we don't already have a piece pending, request a piece
-        if (unchokedBy.contains(peerSocket) && pendingPieces.get(peerSocket) == -1) {
-            // retrieve list of interesting pieces (pieces the peer has that we don't have)
-            BitSet peerBitfieldCopy = (BitSet)peerBitfields.get(peerSocket).clone();
-            peerBitfieldCopy.andNot(bitfield);
-            // remove pieces that are already pending with other peers
-            for (Socket peer : peerSockets)
-                if (pendingPieces.get(peer) != -1)
-                    peerBitfieldCopy.clear(pendingPieces.get(peer));
-            List<Integer> interestingPieces = new ArrayList<Integer>();
-            for (int i = peerBitfieldCopy.nextSetBit(0); i != -1; i = peerBitfieldCopy.nextSetBit(i+1))
-                interestingPieces.add(i);
-            // if the peer has any such interesting pieces, request one at random
-            if (interestingPieces.size() > 0) {
-                int randomIndex = (int)(Math.random() * interestingPieces.size());
-                int randomPiece = interestingPieces.get(randomIndex);
-                sendMessage(peerOutStreams.get(peerSocket), new Message(REQUEST, ByteBuffer.allocate(4).putInt(randomPiece).array()));
-                pendingPieces.put(peerSocket, randomPiece);
-                return true;
+        // Queue a have announcement for all peers, they go out together shortly
+        // Once we have the whole file, tell every peer so at once instead, they need to know it to tell when everyone has finished
+        if (hasFile) {
+            for (PeerConnection otherPeer : peers.values()) {
+                otherPeer.pendingHaves.clear();
+                sendMessage(otherPeer, BitfieldCodec.encode(bitfield, numPieces, otherPeer.compactBitfield));
             }
-            // otherwise, send a not interested message
-            else if (interestingPeers.remove(peerSocket))
-                    sendMessage(peerOutStreams.get(peerSocket), new Message(NOT_INTERESTED));
+        } else {
+            for (PeerConnection otherPeer : peers.values())
+                otherPeer.pendingHaves.set(pieceIndex);
+            scheduleHaveFlush();
         }
-        // Piece was not requested
-        return false;
+        // We may have been the last to finish
+        checkIfAllPeersFinished();
     }
 
-    // Raise a flag when it is time to update preferred neighbors
-    public static void unchokingTimer()
+    // Make sure queued piece announcements get sent soon
+    private void scheduleHaveFlush()
     {
-        while (true) {
-            try {
-                Thread.sleep(unchokingInterval * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        if (haveFlushScheduled)
+            return;
+        haveFlushScheduled = true;
+        eventLoop.schedule(HAVE_FLUSH_DELAY_MILLIS, () -> flushHaves());
+    }
+
+    // Send each peer the pieces we finished since the last flush, as one HAVE or HAVE_MULTI message
+    private void flushHaves()
+    {
+        haveFlushScheduled = false;
+        for (PeerConnection peer : peers.values()) {
+            // Peers that already have a piece don't need to hear about it
+            peer.pendingHaves.andNot(peer.bitfield);
+            int count = peer.pendingHaves.cardinality();
+            if (count == 0)
+                continue;
+            ByteBuffer payload = ByteBuffer.allocate(4 * count);
+            for (int i = peer.pendingHaves.nextSetBit(0); i != -1; i = peer.pendingHaves.nextSetBit(i + 1))
+                payload.putInt(i);
+            peer.pendingHaves.clear();
+            sendMessage(peer, new Message(count == 1 ? HAVE : HAVE_MULTI, payload.array()));
+        }
+    }
+
+    // Give up on a block request, putting the block back up for grabs unless another peer was also asked for it
+    private void cancelRequest(int block)
+    {
+        if (picker.isEndGame())
+            for (PeerConnection peer : peers.values())
+                if (peer.requests.contains(block))
+                    return;
+        picker.cancel(block);
+    }
+
+    // Send CANCEL to every other peer we asked for a block, then refill their windows
+    private void cancelDuplicateRequests(int block, PeerConnection receivedFrom)
+    {
+        for (PeerConnection peer : peers.values()) {
+            if (peer == receivedFrom || !peer.requests.remove(block))
+                continue;
+            sendCancel(peer, block);
+            TryRequestingPiece(peer);
+        }
+    }
+
+    // Tell a peer we no longer want a block
+    private void sendCancel(PeerConnection peer, int block)
+    {
+        sendMessage(peer, new Message(CANCEL, ByteBuffer.allocate(12).putInt(picker.pieceOf(block)).putInt(picker.offsetOf(block)).putInt(picker.lengthOf(block)).array()));
+    }
+
+    // Drop peers that have gone silent, and take back requests from peers that stopped sending blocks
+    private void checkTimeouts()
+    {
+        long now = System.nanoTime();
+        boolean requestsReturned = false;
+        for (PeerConnection peer : peers.values()) {
+            // While we are holding off reading from the peer because of a rate limit, its silence is our doing
+            if (peer.downloadThrottled)
+                continue;
+            // Peers send keep-alives when they have nothing else to say, so a silent one is gone
+            if (now - peer.lastReceived > IDLE_TIMEOUT_MILLIS * 1000000L) {
+                error("Peer " + peer.peerId + " has been silent for too long.");
+                idleDisconnectCount.increment();
+                dropConnection(peer, true);
+                continue;
+            }
+            // Requests are answered in order, so only the oldest one can have timed out, counting from the peer's last block
+            RequestQueue queue = peer.requests;
+            if (queue.isEmpty() || now - Math.max(queue.oldestTime(), peer.lastBlockReceived) < REQUEST_TIMEOUT_MILLIS * 1000000L)
+                continue;
+            error("Requests to peer " + peer.peerId + " timed out.");
+            stallCount.increment();
+            requestTimeoutCount.add(queue.size());
+            peer.requestTimeouts += queue.size();
+            // Call off everything outstanding with the peer and put it back up for grabs
+            while (!queue.isEmpty()) {
+                int block = queue.poll();
+                sendCancel(peer, block);
+                cancelRequest(block);
             }
-            timeToUpdatePreferredNeighbors = true;
+            // Only ask the peer for one block at a time until it shows it can keep up again
+            queue.setLimit(1);
+            requestsReturned = true;
         }
+        // Let the other peers pick up the returned blocks
+        if (requestsReturned)
+            for (PeerConnection peer : peers.values())
+                TryRequestingPiece(peer);
     }
 
-    // Raise a flag when it is time to update optimistically unchoked neighbor
-    public static void optimisticUnchokingTimer()
+    // Send a keep-alive to every peer we haven't sent anything since the last check
+    private void sendKeepAlives()
     {
-        while (true) {
-            try {
-                Thread.sleep(optimisticUnchokingInterval * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        for (PeerConnection peer : peers.values()) {
+            if (peer.codec.bytesQueued() == peer.keepAliveMark)
+                sendMessage(peer, new Message(KEEP_ALIVE));
+            peer.keepAliveMark = peer.codec.bytesQueued();
+        }
+    }
+
+    // Choke a peer, dropping any of its requests we haven't started sending
+    private void chokePeer(PeerConnection peer)
+    {
+        peer.choked = true;
+        peer.uploads.clear();
+        chokeChurnCount.increment();
+        sendMessage(peer, new Message(CHOKE));
+    }
+
+    // Unchoke a peer so we start serving its requests
+    private void unchokePeer(PeerConnection peer)
+    {
+        peer.choked = false;
+        chokeChurnCount.increment();
+        sendMessage(peer, new Message(UNCHOKE));
+    }
+
+    // Check whether a peer has any piece we are missing, by leapfrogging between our missing pieces and the peer's pieces
+    // so long runs on either side are skipped a word at a time
+    private boolean hasPieceWeNeed(BitSet peerBitfield)
+    {
+        for (int i = bitfield.nextClearBit(0); i < numPieces; i = bitfield.nextClearBit(i)) {
+            int next = peerBitfield.nextSetBit(i);
+            if (next == -1 || next >= numPieces)
+                return false;
+            if (next == i)
+                return true;
+            i = next;
+        }
+        return false;
+    }
+
+    // Fill the window of outstanding block requests with a peer, returns whether or not any block was requested
+    public boolean TryRequestingPiece(PeerConnection peer)
+    {
+        // Only request if unchoked by the peer, the window has room, and the peer hasn't sent us too many corrupt pieces
+        RequestQueue queue = peer.requests;
+        if (!peer.unchokingUs || queue.isFull() || peer.hashFailures >= MAX_HASH_FAILURES)
+            return false;
+        // if the peer has no pieces we are missing, send a not interested message
+        if (!hasPieceWeNeed(peer.bitfield)) {
+            if (queue.isEmpty() && peer.interesting) {
+                peer.interesting = false;
+                sendMessage(peer, new Message(NOT_INTERESTED));
             }
-            timeToUpdateOptimisticallyUnchokedNeighbor = true;
+            return false;
+        }
+        // request blocks until the window is full, then send them together
+        int previousSize = queue.size();
+        if (picker.fillRequests(peer.bitfield, queue) == 0)
+            return false;
+        MessageCodec codec = peer.codec;
+        for (int i = previousSize; i < queue.size(); i++) {
+            int block = queue.get(i);
+            codec.writeMessage(new Message(REQUEST, ByteBuffer.allocate(12).putInt(picker.pieceOf(block)).putInt(picker.offsetOf(block)).putInt(picker.lengthOf(block)).array()));
+            recordSent(peer, REQUEST, 4 + 1 + 12);
         }
+        outstandingRequests.record(queue.size());
+        flushMessages(peer);
+        return true;
+    }
+
+    // Collect the peers that are interested in our pieces
+    private List<PeerConnection> interestedPeers()
+    {
+        List<PeerConnection> interestedPeersList = new ArrayList<PeerConnection>();
+        for (PeerConnection peer : peers.values())
+            if (peer.interested)
+                interestedPeersList.add(peer);
+        return interestedPeersList;
     }
 
     // Update the list of preferred neighbors
-    public static void updatePreferredNeighbors()
-    {
-        // Choose the (up to) k interested peers with the highest download rates from last interval, breaking ties randomly
-        List<Socket> interestedPeersList = new ArrayList<Socket>(interestedPeers);
-        interestedPeersList.sort((Socket a, Socket b) -> {
-            if (!hasFile) {
-                int aRate = peerDownloadRates.get(a);
-                int bRate = peerDownloadRates.get(b);
-                if (aRate > bRate)
-                    return -1;
-                else if (aRate < bRate)
-                    return 1;
-            }
-            return (int)(Math.random() * 2) * 2 - 1;
-        });
-        // Reset the download rates
-        for (Socket peerSocket : peerSockets)
-            peerDownloadRates.put(peerSocket, 0);
+    public void updatePreferredNeighbors()
+    {
+        // Fold the bytes moved during the last interval into each peer's smoothed rates
+        for (PeerConnection peer : peers.values()) {
+            peer.downloadRate += RATE_SMOOTHING * ((double)peer.bytesDownloaded / unchokingInterval - peer.downloadRate);
+            peer.uploadRate += RATE_SMOOTHING * ((double)peer.bytesUploaded / unchokingInterval - peer.uploadRate);
+            peer.bytesDownloaded = 0;
+            peer.bytesUploaded = 0;
+        }
+        // Gather the interested peers along with how fast they have been sending to us
+        int numCandidates = 0;
+        for (PeerConnection peer : peers.values()) {
+            if (!peer.interested)
+                continue;
+            if (numCandidates == candidates.length) {
+                candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                candidateRates = Arrays.copyOf(candidateRates, numCandidates * 2);
+            }
+            candidates[numCandidates] = peer;
+            // Once we have the file nobody sends us anything, so every peer ties and the choice is random
+            candidateRates[numCandidates] = hasFile || config.randomPreferredNeighbors ? 0 : peer.downloadRate;
+            numCandidates++;
+        }
+        // Choose the (up to) k fastest, breaking ties randomly
+        int numSelected = selectFastest(numCandidates, numberOfPreferredNeighbors);
         // Set the new preferred neighbors
         @SuppressWarnings("unchecked")
-        HashSet<Socket> previousPreferredNeighbors = (HashSet<Socket>)preferredNeighbors.clone();
+        HashSet<PeerConnection> previousPreferredNeighbors = (HashSet<PeerConnection>)preferredNeighbors.clone();
         preferredNeighbors.clear();
-        for (int i = 0; i < interestedPeersList.size() && i < numberOfPreferredNeighbors; i++)
-            preferredNeighbors.add(interestedPeersList.get(i));
+        for (int i = 0; i < numSelected; i++)
+            preferredNeighbors.add(candidates[i]);
+        Arrays.fill(candidates, 0, numCandidates, null);
         // Unchoke the peers which have been added to the list of preferred neighbors (unless they are the optimistically unchoked neighbor)
-        for (Socket peerSocket : preferredNeighbors) {
-            if (!previousPreferredNeighbors.contains(peerSocket) && peerSocket != optimisticallyUnchokedNeighbor)
-                sendMessage(peerOutStreams.get(peerSocket), new Message(UNCHOKE));
+        for (PeerConnection peer : preferredNeighbors) {
+            if (!previousPreferredNeighbors.contains(peer) && peer != optimisticallyUnchokedNeighbor)
+                unchokePeer(peer);
         }
         // Choke the peers that have left the list of preferred neighbors (unless they are the optimistically unchoked neighbor)
-        for (Socket peerSocket : previousPreferredNeighbors) {
-            if (!preferredNeighbors.contains(peerSocket) && peerSocket != optimisticallyUnchokedNeighbor)
-                sendMessage(peerOutStreams.get(peerSocket), new Message(CHOKE));
+        for (PeerConnection peer : previousPreferredNeighbors) {
+            if (!preferredNeighbors.contains(peer) && peer != optimisticallyUnchokedNeighbor)
+                chokePeer(peer);
         }
         // Generate string of preferred neighbors for logging
         String preferredNeighborsString = "";
-        for (Socket peerSocket : preferredNeighbors)
-            preferredNeighborsString += peerIds.get(peerSocket) + ", ";
+        for (PeerConnection peer : preferredNeighbors)
+            preferredNeighborsString += peer.peerId + ", ";
         // Remove trailing comma and space
         if (preferredNeighborsString.length() > 0)
             preferredNeighborsString = preferredNeighborsString.substring(0, preferredNeighborsString.length() - 2);
@@ -633,25 +2028,54 @@ public class PeerProcess
         log("Peer " + id + " has the preferred neighbors " + preferredNeighborsString + ".");
     }
 
+    // Move the k fastest candidates to the front in order, shuffling first so equal rates end up in random order
+    private int selectFastest(int numCandidates, int k)
+    {
+        for (int i = numCandidates - 1; i > 0; i--) {
+            int j = (int)(Math.random() * (i + 1));
+            PeerConnection candidate = candidates[i];
+            candidates[i] = candidates[j];
+            candidates[j] = candidate;
+            double rate = candidateRates[i];
+            candidateRates[i] = candidateRates[j];
+            candidateRates[j] = rate;
+        }
+        // Pull out the fastest remaining candidate each round, shifting the others over so equal ones keep their order
+        int numSelected = Math.min(k, numCandidates);
+        for (int i = 0; i < numSelected; i++) {
+            int fastest = i;
+            for (int j = i + 1; j < numCandidates; j++)
+                if (candidateRates[j] > candidateRates[fastest])
+                    fastest = j;
+            PeerConnection candidate = candidates[fastest];
+            double rate = candidateRates[fastest];
+            System.arraycopy(candidates, i, candidates, i + 1, fastest - i);
+            System.arraycopy(candidateRates, i, candidateRates, i + 1, fastest - i);
+            candidates[i] = candidate;
+            candidateRates[i] = rate;
+        }
+        return numSelected;
+    }
+
     // Update the optimistically unchoked neighbor
-    public static void updateOptimisticallyUnchokedNeighbor()
+    public void updateOptimisticallyUnchokedNeighbor()
     {
         // Choose a random interested peer that is not already a preferred neighbor or the optimistically unchoked neighbor
-        List<Socket> interestedPeersList = new ArrayList<Socket>(interestedPeers);
+        List<PeerConnection> interestedPeersList = interestedPeers();
         interestedPeersList.removeAll(preferredNeighbors);
         interestedPeersList.remove(optimisticallyUnchokedNeighbor);
         // If there are any such peers, choose one at random to be the new optimistically unchoked neighbor
         if (interestedPeersList.size() > 0) {
             int randomIndex = (int)(Math.random() * interestedPeersList.size());
-            Socket newOptimisticallyUnchokedNeighbor = interestedPeersList.get(randomIndex);
+            PeerConnection newOptimisticallyUnchokedNeighbor = interestedPeersList.get(randomIndex);
             // If the previous optimistically unchoked neighbor is not a preferred neighbor, choke it
             if (optimisticallyUnchokedNeighbor != null && !preferredNeighbors.contains(optimisticallyUnchokedNeighbor))
-                sendMessage(peerOutStreams.get(optimisticallyUnchokedNeighbor), new Message(CHOKE));
+                chokePeer(optimisticallyUnchokedNeighbor);
             // Set the new optimistically unchoked neighbor and unchoke it
             optimisticallyUnchokedNeighbor = newOptimisticallyUnchokedNeighbor;
-            sendMessage(peerOutStreams.get(optimisticallyUnchokedNeighbor), new Message(UNCHOKE));
+            unchokePeer(optimisticallyUnchokedNeighbor);
         }
         // Whether or not the optimistically unchoked neighbor changed, log it
-        log("Peer " + id + " has the optimistically unchoked neighbor " + peerIds.get(optimisticallyUnchokedNeighbor) + ".");
+        log("Peer " + id + " has the optimistically unchoked neighbor " + (optimisticallyUnchokedNeighbor == null ? null : optimisticallyUnchokedNeighbor.peerId) + ".");
     }
 }
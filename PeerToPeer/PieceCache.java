@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Uploaded pieces kept in memory, so many peers asking for the same pieces don't each have them sent from disk
+// Only pieces asked for more than once are loaded, on a thread of their own, into a bounded pool of direct buffers,
+// and the least recently used piece is evicted first
+public class PieceCache
+{
+    // Most loads waiting for the loader thread, past this they are dropped since the block can always be sent from disk
+    private static final int MAX_QUEUED_LOADS = 64;
+    // How many times a piece must be asked for before it is worth loading, pieces only asked for once are sent from disk
+    private static final int ADMIT_REQUESTS = 2;
+    // Request counts are halved after this many requests per cached piece, so pieces that were popular a while ago fade out
+    private static final int AGING_REQUESTS_PER_PIECE = 10;
+
+    // A cached piece, pinned while blocks of it are queued for sending so its buffer isn't reused under them
+    public static class Entry
+    {
+        private final ByteBuffer buffer;
+        private int pins = 0;
+
+        private Entry(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        // A view of one block of the piece, with its own position and limit
+        public ByteBuffer block(int offset, int length)
+        {
+            ByteBuffer block = buffer.duplicate();
+            block.limit(offset + length);
+            block.position(offset);
+            return block;
+        }
+    }
+
+    private final PieceStorage storage;
+    private final int pieceSize;
+    private final int maxBuffers;
+    private final ThreadPoolExecutor loader;
+    // The loader thread, so its CPU time can be measured
+    private final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+
+    // Cached pieces in least recently used order, pieces being loaded, and buffers not holding a piece
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+    private final HashSet<Integer> loading = new HashSet<Integer>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+    private int numBuffers = 0;
+    // How often each piece was asked for lately, saturating at the byte's maximum
+    private final byte[] requestCounts;
+    private long requestsSinceAging = 0;
+
+    // Blocks sent from the cache, and blocks that had to be sent from disk
+    private long hits = 0;
+    private long misses = 0;
+
+    // Holds at most maxBytes of pieces, rounded down to whole pieces
+    public PieceCache(PieceStorage storage, int numPieces, int pieceSize, long maxBytes)
+    {
+        this.storage = storage;
+        this.pieceSize = pieceSize;
+        this.maxBuffers = (int)Math.min(Integer.MAX_VALUE, maxBytes / pieceSize);
+        this.requestCounts = new byte[numPieces];
+        this.loader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_LOADS), runnable -> {
+                Thread thread = new Thread(runnable, "piece-cache");
+                thread.setDaemon(true);
+                threads.add(thread);
+                return thread;
+            });
+    }
+
+    public List<Thread> threads()
+    {
+        return threads;
+    }
+
+    // Stop loading pieces, without interrupting a read in progress (which would close the file under everyone else)
+    public void shutdown()
+    {
+        loader.shutdown();
+        try {
+            loader.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The cached piece, pinned until released, or null if it isn't cached
+    public synchronized Entry acquire(int pieceIndex)
+    {
+        Entry entry = entries.get(pieceIndex);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.pins++;
+        return entry;
+    }
+
+    // Done sending a block of a piece, safe to call from any thread
+    public synchronized void release(Entry entry)
+    {
+        entry.pins--;
+    }
+
+    // Count a peer asking for a piece, returns whether it has now been asked for often enough to be worth loading
+    public synchronized boolean recordRequest(int pieceIndex)
+    {
+        if (requestCounts[pieceIndex] < Byte.MAX_VALUE)
+            requestCounts[pieceIndex]++;
+        if (++requestsSinceAging >= (long)AGING_REQUESTS_PER_PIECE * Math.max(1, maxBuffers)) {
+            requestsSinceAging = 0;
+            for (int i = 0; i < requestCounts.length; i++)
+                requestCounts[i] >>= 1;
+        }
+        return requestCounts[pieceIndex] >= ADMIT_REQUESTS;
+    }
+
+    // Read a piece into the cache in the background, unless it is already there or on its way
+    // Only call this for pieces we have, the cache trusts what is on disk
+    public synchronized void load(int pieceIndex)
+    {
+        if (entries.containsKey(pieceIndex) || !loading.add(pieceIndex))
+            return;
+        try {
+            loader.execute(() -> loadNow(pieceIndex));
+        } catch (RejectedExecutionException e) {
+            // The loader is busy or shut down, the piece is sent from disk meanwhile
+            loading.remove(pieceIndex);
+        }
+    }
+
+    private void loadNow(int pieceIndex)
+    {
+        ByteBuffer buffer = takeBuffer();
+        if (buffer == null) {
+            synchronized (this) {
+                loading.remove(pieceIndex);
+            }
+            return;
+        }
+        boolean loaded = false;
+        try {
+            buffer.clear();
+            storage.readPiece(pieceIndex, buffer);
+            buffer.flip();
+            loaded = true;
+        } catch (IOException e) {
+            PeerProcess.error("Error reading piece " + pieceIndex + " into the cache.");
+        }
+        synchronized (this) {
+            loading.remove(pieceIndex);
+            if (loaded)
+                entries.put(pieceIndex, new Entry(buffer));
+            else
+                freeBuffers.push(buffer);
+        }
+    }
+
+    // A buffer to load a piece into, allocating one while under the limit and evicting the least recently used piece after that
+    // Pieces with blocks still queued for sending are skipped, if every piece is pinned nothing gets loaded
+    private synchronized ByteBuffer takeBuffer()
+    {
+        if (!freeBuffers.isEmpty())
+            return freeBuffers.pop();
+        if (numBuffers < maxBuffers) {
+            numBuffers++;
+            return ByteBuffer.allocateDirect(pieceSize);
+        }
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.pins == 0) {
+                iterator.remove();
+                return entry.buffer;
+            }
+        }
+        return null;
+    }
+
+    public synchronized long hits()
+    {
+        return hits;
+    }
+
+    public synchronized long misses()
+    {
+        return misses;
+    }
+
+    // Bytes of pieces held in the cache right now
+    public synchronized long bytesCached()
+    {
+        long total = 0;
+        for (Entry entry : entries.values())
+            total += entry.buffer.limit();
+        return total;
+    }
+}
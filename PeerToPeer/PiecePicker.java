@@ -0,0 +1,338 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Chooses which blocks to request, and tracks which blocks of each piece are requested or received
+public class PiecePicker
+{
+    // Pick pieces at random until we have this many, so we quickly have something to trade
+    public static final int RANDOM_FIRST_PIECES = 4;
+
+    private final long fileSize;
+    private final int pieceSize;
+    private final int blockSize;
+    private final int numPieces;
+    private final int blocksPerPiece;
+
+    // Blocks that are requested from some peer or already received, and blocks that are received
+    private final BitSet claimedBlocks;
+    private final BitSet receivedBlocks;
+    // Pieces with at least one claimed block that aren't complete, and pieces with every block claimed
+    private final BitSet piecesInProgress;
+    private final BitSet fullyClaimedPieces;
+
+    // How many connected peers have each piece
+    private final int[] availability;
+    // Pieces that still have unclaimed blocks, kept in doubly linked lists bucketed by availability
+    private final int[] next;
+    private final int[] previous;
+    private int[] bucketHeads = new int[8];
+    private final BitSet indexed;
+    private int numIndexed = 0;
+    private int numCompleted = 0;
+    // Whether to keep picking random pieces after the first few instead of going for the rarest
+    private boolean randomOrder = false;
+
+    // Start out with the pieces we already have marked as received
+    public PiecePicker(long fileSize, int pieceSize, int blockSize, BitSet bitfield)
+    {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.blockSize = Math.min(blockSize, pieceSize);
+        this.numPieces = (int)((fileSize + pieceSize - 1) / pieceSize);
+        this.blocksPerPiece = (pieceSize + this.blockSize - 1) / this.blockSize;
+        this.claimedBlocks = new BitSet(numPieces * blocksPerPiece);
+        this.receivedBlocks = new BitSet(numPieces * blocksPerPiece);
+        this.piecesInProgress = new BitSet(numPieces);
+        this.fullyClaimedPieces = new BitSet(numPieces);
+        this.availability = new int[numPieces];
+        this.next = new int[numPieces];
+        this.previous = new int[numPieces];
+        this.indexed = new BitSet(numPieces);
+        Arrays.fill(bucketHeads, -1);
+        for (int pieceIndex = 0; pieceIndex < numPieces; pieceIndex++) {
+            if (bitfield.get(pieceIndex)) {
+                int firstBlock = pieceIndex * blocksPerPiece;
+                claimedBlocks.set(firstBlock, firstBlock + blocksInPiece(pieceIndex));
+                receivedBlocks.set(firstBlock, firstBlock + blocksInPiece(pieceIndex));
+                fullyClaimedPieces.set(pieceIndex);
+                numCompleted++;
+            } else {
+                link(pieceIndex);
+            }
+        }
+    }
+
+    public void setRandomOrder(boolean randomOrder)
+    {
+        this.randomOrder = randomOrder;
+    }
+
+    // The length of a piece (the last piece may be smaller than the rest)
+    public int pieceLength(int pieceIndex)
+    {
+        return (int)Math.min(pieceSize, fileSize - (long)pieceIndex * pieceSize);
+    }
+
+    // The number of blocks in a piece (the last piece may have fewer)
+    public int blocksInPiece(int pieceIndex)
+    {
+        return (pieceLength(pieceIndex) + blockSize - 1) / blockSize;
+    }
+
+    // Blocks are numbered across the whole file, with a fixed stride per piece
+    public int blockId(int pieceIndex, int offset)
+    {
+        return pieceIndex * blocksPerPiece + offset / blockSize;
+    }
+
+    public int pieceOf(int block)
+    {
+        return block / blocksPerPiece;
+    }
+
+    public int offsetOf(int block)
+    {
+        return (block % blocksPerPiece) * blockSize;
+    }
+
+    public int lengthOf(int block)
+    {
+        return Math.min(blockSize, pieceLength(pieceOf(block)) - offsetOf(block));
+    }
+
+    // Whether a block with this offset and length lines up with our block boundaries
+    public boolean isValidBlock(int pieceIndex, int offset, int length)
+    {
+        return pieceIndex >= 0 && pieceIndex < numPieces && offset >= 0 && offset % blockSize == 0
+            && offset < pieceLength(pieceIndex) && length == lengthOf(blockId(pieceIndex, offset));
+    }
+
+    public boolean isReceived(int block)
+    {
+        return receivedBlocks.get(block);
+    }
+
+    // End game starts once every block we are missing has been requested from someone
+    public boolean isEndGame()
+    {
+        return numIndexed == 0 && numCompleted < numPieces;
+    }
+
+    public int availability(int pieceIndex)
+    {
+        return availability[pieceIndex];
+    }
+
+    // A peer announced it has a piece
+    public void pieceAdded(int pieceIndex)
+    {
+        boolean wasIndexed = indexed.get(pieceIndex);
+        if (wasIndexed)
+            unlink(pieceIndex);
+        availability[pieceIndex]++;
+        if (wasIndexed)
+            link(pieceIndex);
+    }
+
+    // A peer with these pieces announced its bitfield
+    public void peerAdded(BitSet peerBitfield)
+    {
+        for (int i = peerBitfield.nextSetBit(0); i != -1 && i < numPieces; i = peerBitfield.nextSetBit(i + 1))
+            pieceAdded(i);
+    }
+
+    // A peer with these pieces is gone or replaced its bitfield
+    public void peerRemoved(BitSet peerBitfield)
+    {
+        for (int i = peerBitfield.nextSetBit(0); i != -1 && i < numPieces; i = peerBitfield.nextSetBit(i + 1)) {
+            boolean wasIndexed = indexed.get(i);
+            if (wasIndexed)
+                unlink(i);
+            availability[i]--;
+            if (wasIndexed)
+                link(i);
+        }
+    }
+
+    // Pick blocks the peer can give us until the queue is full, returns how many were added
+    public int fillRequests(BitSet peerBitfield, RequestQueue queue)
+    {
+        if (isEndGame())
+            return fillEndGameRequests(peerBitfield, queue);
+        int added = 0;
+        while (!queue.isFull()) {
+            // Finish pieces that are already started before starting new ones
+            int pieceIndex = nextPieceInProgress(peerBitfield);
+            if (pieceIndex == -1) {
+                // Start with random pieces, then go for the rarest so they don't disappear with the peers holding them
+                pieceIndex = randomOrder || numCompleted < RANDOM_FIRST_PIECES ? randomPiece(peerBitfield) : rarestPiece(peerBitfield);
+                if (pieceIndex == -1)
+                    break;
+                piecesInProgress.set(pieceIndex);
+            }
+            // Claim blocks of the piece until it is fully claimed or the queue is full
+            int firstBlock = pieceIndex * blocksPerPiece;
+            int endBlock = firstBlock + blocksInPiece(pieceIndex);
+            int block = claimedBlocks.nextClearBit(firstBlock);
+            while (!queue.isFull() && block < endBlock) {
+                claimedBlocks.set(block);
+                queue.add(block);
+                added++;
+                block = claimedBlocks.nextClearBit(block + 1);
+            }
+            if (block >= endBlock) {
+                fullyClaimedPieces.set(pieceIndex);
+                unlink(pieceIndex);
+            }
+        }
+        return added;
+    }
+
+    // Ask the peer for missing blocks that are already requested elsewhere, whichever copy arrives first wins
+    private int fillEndGameRequests(BitSet peerBitfield, RequestQueue queue)
+    {
+        int added = 0;
+        for (int i = piecesInProgress.nextSetBit(0); i != -1 && !queue.isFull(); i = piecesInProgress.nextSetBit(i + 1)) {
+            if (!peerBitfield.get(i))
+                continue;
+            int firstBlock = i * blocksPerPiece;
+            int endBlock = firstBlock + blocksInPiece(i);
+            for (int block = receivedBlocks.nextClearBit(firstBlock); block < endBlock && !queue.isFull(); block = receivedBlocks.nextClearBit(block + 1)) {
+                if (!queue.contains(block)) {
+                    queue.add(block);
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    // Find a started piece the peer has which still has unclaimed blocks
+    private int nextPieceInProgress(BitSet peerBitfield)
+    {
+        for (int i = piecesInProgress.nextSetBit(0); i != -1; i = piecesInProgress.nextSetBit(i + 1))
+            if (peerBitfield.get(i) && !fullyClaimedPieces.get(i))
+                return i;
+        return -1;
+    }
+
+    // Find the least available piece the peer has which still has unclaimed blocks
+    private int rarestPiece(BitSet peerBitfield)
+    {
+        // Nobody we know of has the pieces in bucket 0, so start at 1
+        for (int count = 1; count < bucketHeads.length; count++) {
+            int head = bucketHeads[count];
+            if (head == -1)
+                continue;
+            int i = head;
+            do {
+                if (peerBitfield.get(i))
+                    return i;
+                i = next[i];
+            } while (i != head);
+        }
+        return -1;
+    }
+
+    // Find a random piece the peer has which still has unclaimed blocks, scanning from a random point
+    private int randomPiece(BitSet peerBitfield)
+    {
+        int start = (int)(Math.random() * numPieces);
+        for (int i = peerBitfield.nextSetBit(start); i != -1 && i < numPieces; i = peerBitfield.nextSetBit(i + 1))
+            if (indexed.get(i))
+                return i;
+        for (int i = peerBitfield.nextSetBit(0); i != -1 && i < start; i = peerBitfield.nextSetBit(i + 1))
+            if (indexed.get(i))
+                return i;
+        return -1;
+    }
+
+    // Give up on a request so the block can be requested again
+    public void cancel(int block)
+    {
+        if (receivedBlocks.get(block))
+            return;
+        claimedBlocks.clear(block);
+        int pieceIndex = pieceOf(block);
+        if (fullyClaimedPieces.get(pieceIndex)) {
+            fullyClaimedPieces.clear(pieceIndex);
+            link(pieceIndex);
+        }
+    }
+
+    // Record a received block, returns whether its piece is now complete
+    public boolean blockReceived(int block)
+    {
+        receivedBlocks.set(block);
+        claimedBlocks.set(block);
+        int pieceIndex = pieceOf(block);
+        int firstBlock = pieceIndex * blocksPerPiece;
+        if (receivedBlocks.nextClearBit(firstBlock) < firstBlock + blocksInPiece(pieceIndex))
+            return false;
+        piecesInProgress.clear(pieceIndex);
+        fullyClaimedPieces.set(pieceIndex);
+        unlink(pieceIndex);
+        numCompleted++;
+        return true;
+    }
+
+    // Throw away a piece that failed verification so all of its blocks are requested again
+    public void pieceFailed(int pieceIndex)
+    {
+        int firstBlock = pieceIndex * blocksPerPiece;
+        int endBlock = firstBlock + blocksInPiece(pieceIndex);
+        receivedBlocks.clear(firstBlock, endBlock);
+        claimedBlocks.clear(firstBlock, endBlock);
+        fullyClaimedPieces.clear(pieceIndex);
+        numCompleted--;
+        link(pieceIndex);
+    }
+
+    // Add a piece to the front or back of its availability bucket, chosen at random so ties are broken randomly
+    private void link(int pieceIndex)
+    {
+        if (indexed.get(pieceIndex))
+            return;
+        int count = availability[pieceIndex];
+        if (count >= bucketHeads.length) {
+            int oldLength = bucketHeads.length;
+            bucketHeads = Arrays.copyOf(bucketHeads, Math.max(oldLength * 2, count + 1));
+            Arrays.fill(bucketHeads, oldLength, bucketHeads.length, -1);
+        }
+        int head = bucketHeads[count];
+        if (head == -1) {
+            next[pieceIndex] = pieceIndex;
+            previous[pieceIndex] = pieceIndex;
+            bucketHeads[count] = pieceIndex;
+        } else {
+            // Buckets are circular, so the back is just before the head
+            int tail = previous[head];
+            next[tail] = pieceIndex;
+            previous[pieceIndex] = tail;
+            next[pieceIndex] = head;
+            previous[head] = pieceIndex;
+            if (Math.random() < 0.5)
+                bucketHeads[count] = pieceIndex;
+        }
+        indexed.set(pieceIndex);
+        numIndexed++;
+    }
+
+    // Take a piece out of its availability bucket
+    private void unlink(int pieceIndex)
+    {
+        if (!indexed.get(pieceIndex))
+            return;
+        int count = availability[pieceIndex];
+        if (next[pieceIndex] == pieceIndex) {
+            bucketHeads[count] = -1;
+        } else {
+            next[previous[pieceIndex]] = next[pieceIndex];
+            previous[next[pieceIndex]] = previous[pieceIndex];
+            if (bucketHeads[count] == pieceIndex)
+                bucketHeads[count] = next[pieceIndex];
+        }
+        indexed.clear(pieceIndex);
+        numIndexed--;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+// Remembers which pieces are safely on disk in a small file next to the download, so a restarted peer can resume
+public class PieceState
+{
+    // The file size and piece size come first, so a state file left over from a different download is ignored
+    private static final int HEADER_LENGTH = 12;
+
+    private final String stateFileName;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+    private final BitSet pieces;
+    // Bytes of the bitfield that changed since the last save
+    private final BitSet dirtyBytes = new BitSet();
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    public PieceState(String stateFileName, long fileSize, int pieceSize)
+    {
+        this.stateFileName = stateFileName;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = (int)((fileSize + pieceSize - 1) / pieceSize);
+        this.pieces = new BitSet(numPieces);
+    }
+
+    // The name of the state file which tracks a download
+    public static String stateFileName(String fileName)
+    {
+        return fileName + ".state";
+    }
+
+    // Read the pieces saved by an earlier run, starting a fresh state file if there is none or it doesn't match
+    public BitSet load() throws IOException
+    {
+        File path = new File(stateFileName);
+        if (path.length() == HEADER_LENGTH + bitfieldLength()) {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bitfieldLength());
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, buffer.position()) < 0)
+                    break;
+            buffer.flip();
+            if (buffer.remaining() == HEADER_LENGTH + bitfieldLength() && buffer.getLong() == fileSize && buffer.getInt() == pieceSize) {
+                pieces.or(BitSet.valueOf(buffer));
+                pieces.clear(numPieces, pieces.size());
+                return (BitSet)pieces.clone();
+            }
+            file.close();
+        }
+        create();
+        return new BitSet(numPieces);
+    }
+
+    // Write an empty state file, swapping it in whole so a crash never leaves half of one behind
+    private void create() throws IOException
+    {
+        File path = new File(stateFileName);
+        File temporaryPath = new File(stateFileName + ".tmp");
+        // The download's directory may not have been created yet
+        File directory = path.getParentFile();
+        if (directory != null && !directory.exists())
+            directory.mkdirs();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bitfieldLength());
+        buffer.putLong(fileSize).putInt(pieceSize);
+        buffer.clear();
+        try (RandomAccessFile temporaryFile = new RandomAccessFile(temporaryPath, "rw")) {
+            temporaryFile.setLength(0);
+            FileChannel temporaryChannel = temporaryFile.getChannel();
+            while (buffer.hasRemaining())
+                temporaryChannel.write(buffer);
+            temporaryChannel.force(false);
+        }
+        Files.move(temporaryPath.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+    }
+
+    private int bitfieldLength()
+    {
+        return (numPieces + 7) / 8;
+    }
+
+    // Note a piece that is written and verified, it is saved on the next call to save
+    public void pieceCompleted(int pieceIndex)
+    {
+        pieces.set(pieceIndex);
+        dirtyBytes.set(pieceIndex / 8);
+    }
+
+    // Forget a piece whose data is gone, it is saved on the next call to save
+    public void pieceLost(int pieceIndex)
+    {
+        pieces.clear(pieceIndex);
+        dirtyBytes.set(pieceIndex / 8);
+    }
+
+    public boolean isDirty()
+    {
+        return !dirtyBytes.isEmpty();
+    }
+
+    // Write the changed bytes of the bitfield in place, the piece data must already be forced to disk
+    public void save() throws IOException
+    {
+        if (dirtyBytes.isEmpty())
+            return;
+        // Each byte is rewritten whole, so a crash leaves it with either its old or its new value
+        byte[] bytes = pieces.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        for (int i = dirtyBytes.nextSetBit(0); i != -1; i = dirtyBytes.nextSetBit(i + 1)) {
+            buffer.clear();
+            buffer.put(0, i < bytes.length ? bytes[i] : 0);
+            while (buffer.hasRemaining())
+                channel.write(buffer, HEADER_LENGTH + i);
+        }
+        channel.force(false);
+        dirtyBytes.clear();
+    }
+
+    public void close() throws IOException
+    {
+        if (file != null)
+            file.close();
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Piece data kept on disk, the shared files are treated as one stream split into pieces, so a piece may span several files
+public class PieceStorage
+{
+    private final String[] paths;
+    private final long[] fileSizes;
+    // Where each file starts in the stream, with the total size at the end
+    private final long[] fileStarts;
+    private final RandomAccessFile[] files;
+    private final FileChannel[] channels;
+    // Which files were already on disk at their full size when we started
+    private final boolean[] existed;
+    private final boolean hasFile;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+
+    // Files are opened when first used, and created at their full size if we don't have them yet
+    public PieceStorage(String[] paths, long[] fileSizes, int pieceSize, boolean hasFile) throws IOException
+    {
+        this.paths = paths;
+        this.fileSizes = fileSizes;
+        this.fileStarts = new long[paths.length + 1];
+        for (int i = 0; i < paths.length; i++)
+            fileStarts[i + 1] = fileStarts[i] + fileSizes[i];
+        this.files = new RandomAccessFile[paths.length];
+        this.channels = new FileChannel[paths.length];
+        this.existed = new boolean[paths.length];
+        this.hasFile = hasFile;
+        this.fileSize = fileStarts[paths.length];
+        this.pieceSize = pieceSize;
+        this.numPieces = (int)((fileSize + pieceSize - 1) / pieceSize);
+        for (int i = 0; i < paths.length; i++) {
+            File path = new File(paths[i]);
+            existed[i] = path.isFile() && path.length() == fileSizes[i];
+            // Empty files hold no pieces, so nothing would ever create them
+            if (!hasFile && fileSizes[i] == 0)
+                channel(i);
+        }
+    }
+
+    public int numPieces()
+    {
+        return numPieces;
+    }
+
+    // Where a piece starts in the stream
+    public long pieceOffset(int pieceIndex)
+    {
+        return (long)pieceIndex * pieceSize;
+    }
+
+    // The length of a piece (the last piece may be smaller than the rest)
+    public int pieceLength(int pieceIndex)
+    {
+        return (int)Math.min(pieceSize, fileSize - pieceOffset(pieceIndex));
+    }
+
+    // The file holding a position in the stream
+    public int fileAt(long position)
+    {
+        // Find the last file starting at or before the position, which skips over empty files
+        int low = 0;
+        int high = paths.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (fileStarts[middle] <= position)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    public long fileStart(int fileIndex)
+    {
+        return fileStarts[fileIndex];
+    }
+
+    public long fileEnd(int fileIndex)
+    {
+        return fileStarts[fileIndex + 1];
+    }
+
+    // Whether every file a piece lies in was already on disk at its full size when we started
+    public boolean existedAtStart(int pieceIndex)
+    {
+        long start = pieceOffset(pieceIndex);
+        long end = start + pieceLength(pieceIndex);
+        for (int i = fileAt(start); i < paths.length && fileStarts[i] < end; i++)
+            if (!existed[i] && fileSizes[i] > 0)
+                return false;
+        return true;
+    }
+
+    // The open channel for a file, opening it (and creating it if needed) the first time
+    public synchronized FileChannel channel(int fileIndex) throws IOException
+    {
+        if (channels[fileIndex] == null) {
+            File path = new File(paths[fileIndex]);
+            RandomAccessFile file;
+            if (hasFile) {
+                file = new RandomAccessFile(path, "r");
+            } else {
+                // Create the directory if it doesn't exist
+                File directory = path.getParentFile();
+                if (directory != null && !directory.exists())
+                    directory.mkdirs();
+                // Reserve the full size up front so every piece can be written at its offset
+                file = new RandomAccessFile(path, "rw");
+                if (file.length() != fileSizes[fileIndex])
+                    file.setLength(fileSizes[fileIndex]);
+            }
+            files[fileIndex] = file;
+            channels[fileIndex] = file.getChannel();
+        }
+        return channels[fileIndex];
+    }
+
+    // Read a whole piece into the remaining space of the buffer
+    public void readPiece(int pieceIndex, ByteBuffer buffer) throws IOException
+    {
+        long position = pieceOffset(pieceIndex);
+        buffer.limit(buffer.position() + pieceLength(pieceIndex));
+        while (buffer.hasRemaining()) {
+            int fileIndex = fileAt(position);
+            int count = (int)Math.min(buffer.remaining(), fileEnd(fileIndex) - position);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + count);
+            FileChannel channel = channel(fileIndex);
+            while (buffer.hasRemaining()) {
+                int bytesRead = channel.read(buffer, position - fileStart(fileIndex));
+                if (bytesRead < 0)
+                    throw new IOException("Unexpected end of file reading piece " + pieceIndex + ".");
+                position += bytesRead;
+            }
+            buffer.limit(limit);
+        }
+    }
+
+    // Write a block of a piece at its offset
+    public void writeBlock(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || offset + length > pieceLength(pieceIndex))
+            throw new IOException("Block at " + offset + " of length " + length + " does not fit in piece " + pieceIndex + ".");
+        long start = pieceOffset(pieceIndex) + offset;
+        long end = start + length;
+        long position = start;
+        while (position < end) {
+            int fileIndex = fileAt(position);
+            int count = (int)(Math.min(end, fileEnd(fileIndex)) - position);
+            ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset + (int)(position - start), count);
+            FileChannel channel = channel(fileIndex);
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position - fileStart(fileIndex));
+        }
+    }
+
+    // Make sure everything written so far has reached the disk
+    public synchronized void force() throws IOException
+    {
+        for (FileChannel channel : channels)
+            if (channel != null)
+                channel.force(false);
+    }
+
+    public synchronized void close() throws IOException
+    {
+        for (RandomAccessFile file : files)
+            if (file != null)
+                file.close();
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Hashes pieces with SHA-256 on a bounded pool of worker threads, keeping the work off the event loop
+public class PieceVerifier
+{
+    // Most verifications waiting for a thread, the caller holds on to any more until some finish
+    public static final int MAX_QUEUED_VERIFICATIONS = 64;
+
+    private final PieceStorage storage;
+    private final int numThreads;
+    private final ThreadPoolExecutor pool;
+    // The worker threads, so their CPU time can be measured
+    private final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+
+    // Each worker thread keeps its own digest and piece-sized buffer
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> newDigest());
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    public PieceVerifier(PieceStorage storage, int pieceSize, int numThreads)
+    {
+        this.storage = storage;
+        this.numThreads = numThreads;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(pieceSize));
+        this.pool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_VERIFICATIONS), runnable -> {
+                Thread thread = new Thread(runnable, "piece-verifier");
+                thread.setDaemon(true);
+                threads.add(thread);
+                return thread;
+            });
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    // Hash one piece as it is stored on disk, into the given array at the given offset
+    public void hashPiece(int pieceIndex, byte[] hashes, int offset) throws IOException
+    {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        storage.readPiece(pieceIndex, buffer);
+        buffer.flip();
+        MessageDigest digest = digests.get();
+        digest.update(buffer);
+        try {
+            digest.digest(hashes, offset, Metadata.HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IOException("Error hashing piece " + pieceIndex + ".", e);
+        }
+    }
+
+    // Hash every piece of the file, splitting it into one contiguous range per thread
+    public byte[] hashAll() throws IOException
+    {
+        int numPieces = storage.numPieces();
+        byte[] hashes = new byte[numPieces * Metadata.HASH_LENGTH];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int piecesPerTask = (numPieces + numThreads - 1) / numThreads;
+        for (int start = 0; start < numPieces; start += piecesPerTask) {
+            int from = start;
+            int to = Math.min(numPieces, start + piecesPerTask);
+            tasks.add(() -> {
+                for (int i = from; i < to; i++)
+                    hashPiece(i, hashes, i * Metadata.HASH_LENGTH);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing the file.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error hashing the file.", e.getCause());
+        }
+        return hashes;
+    }
+
+    public List<Thread> threads()
+    {
+        return threads;
+    }
+
+    // Stop the worker threads, verifications already queued are dropped
+    public void shutdown()
+    {
+        pool.shutdownNow();
+    }
+
+    // Check a stored piece against the metadata on a worker thread, the callback runs on that thread
+    // The caller must not have more than MAX_QUEUED_VERIFICATIONS pieces waiting on callbacks at once
+    public void verify(int pieceIndex, Metadata metadata, Consumer<Boolean> callback)
+    {
+        try {
+            pool.execute(() -> {
+                byte[] hash = new byte[Metadata.HASH_LENGTH];
+                boolean valid;
+                try {
+                    hashPiece(pieceIndex, hash, 0);
+                    valid = metadata.matches(pieceIndex, hash);
+                } catch (IOException e) {
+                    valid = false;
+                }
+                callback.accept(valid);
+            });
+        } catch (RejectedExecutionException e) {
+            // The verifier has been shut down, and the piece is dropped along with everything else queued
+        }
+    }
+}
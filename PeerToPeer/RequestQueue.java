@@ -0,0 +1,122 @@
+// Block requests outstanding with one peer, in the order they were sent, capped at a window that may be shrunk
+public class RequestQueue
+{
+    private final int[] requests;
+    // When each request was added, the oldest one is always at the head so it is the first to time out
+    private final long[] times;
+    private int head = 0;
+    private int size = 0;
+    private int limit;
+
+    public RequestQueue(int capacity)
+    {
+        this.requests = new int[capacity];
+        this.times = new long[capacity];
+        this.limit = capacity;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public boolean isFull()
+    {
+        return size >= limit;
+    }
+
+    public int capacity()
+    {
+        return requests.length;
+    }
+
+    public int limit()
+    {
+        return limit;
+    }
+
+    // Change how many requests fit in the window, requests already queued past a smaller limit stay
+    public void setLimit(int limit)
+    {
+        this.limit = Math.max(1, Math.min(limit, requests.length));
+    }
+
+    // When the oldest request was added, in System.nanoTime() units
+    public long oldestTime()
+    {
+        return times[head];
+    }
+
+    // Get the i-th oldest outstanding request
+    public int get(int i)
+    {
+        return requests[(head + i) % requests.length];
+    }
+
+    // Whether a request is outstanding
+    public boolean contains(int request)
+    {
+        for (int i = 0; i < size; i++)
+            if (get(i) == request)
+                return true;
+        return false;
+    }
+
+    // When a request was added, or -1 if it isn't outstanding
+    public long sentTime(int request)
+    {
+        for (int i = 0; i < size; i++)
+            if (get(i) == request)
+                return times[(head + i) % requests.length];
+        return -1;
+    }
+
+    // Take the oldest request off the queue
+    public int poll()
+    {
+        int request = requests[head];
+        head = (head + 1) % requests.length;
+        size--;
+        return request;
+    }
+
+    // Record a request that was just sent
+    public void add(int request)
+    {
+        requests[(head + size) % requests.length] = request;
+        times[(head + size) % requests.length] = System.nanoTime();
+        size++;
+    }
+
+    // Remove a request once it has been answered, returns whether it was outstanding
+    public boolean remove(int request)
+    {
+        for (int i = 0; i < size; i++) {
+            if (get(i) == request) {
+                // Answers usually arrive in order, so this is normally just the head
+                if (i == 0) {
+                    head = (head + 1) % requests.length;
+                } else {
+                    for (int j = i; j < size - 1; j++) {
+                        requests[(head + j) % requests.length] = get(j + 1);
+                        times[(head + j) % requests.length] = times[(head + j + 1) % requests.length];
+                    }
+                }
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear()
+    {
+        head = 0;
+        size = 0;
+    }
+}
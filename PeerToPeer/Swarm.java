@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Runs a whole swarm of peers on localhost in one JVM, and reports how long each took to get the file and what it cost
+// Usage: java Swarm [numPeers] [fileSize] [pieceSize] [latencyMillis] [rate|minRate-maxRate] [connections] [timeoutSeconds] [Selector|Threads] [readCacheSize] [Rate|Random] [Rarest|Random]
+public class Swarm
+{
+    // The first peer has the file, every later one connects to a few random earlier ones and finds the rest through them
+    private static final int FIRST_PEER_ID = 1001;
+    private static final String FILE_NAME = "data.bin";
+    private static final long RANDOM_SEED = 42;
+
+    // Entry point
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long fileSize = args.length > 1 ? Long.parseLong(args[1]) : 16 * 1024 * 1024;
+        int pieceSize = args.length > 2 ? Integer.parseInt(args[2]) : 256 * 1024;
+        int latencyMillis = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        // Either one rate for every peer, or a range each peer's rate is drawn from
+        String[] rates = args.length > 4 ? args[4].split("-") : new String[] { "0" };
+        long minRate = Long.parseLong(rates[0]);
+        long maxRate = Long.parseLong(rates[rates.length - 1]);
+        int connections = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+        int timeoutSeconds = args.length > 6 ? Integer.parseInt(args[6]) : 300;
+        boolean threadPerConnection = args.length > 7 ? PeerConfig.parseIoMode(args[7]) : false;
+        long readCacheSize = args.length > 8 ? Long.parseLong(args[8]) : 0;
+        boolean randomPreferredNeighbors = args.length > 9 ? parseChoking(args[9]) : false;
+        boolean randomPieceOrder = args.length > 10 ? parsePieceOrder(args[10]) : false;
+        if (numPeers < 2 || numPeers > 200) {
+            System.err.println("The swarm must have between 2 and 200 peers.");
+            return;
+        }
+        Path directory = Files.createTempDirectory("swarm");
+        try {
+            run(directory.toFile(), numPeers, fileSize, pieceSize, latencyMillis, minRate, maxRate, connections, timeoutSeconds, threadPerConnection, readCacheSize, randomPreferredNeighbors, randomPieceOrder);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    // Start every peer, wait for all of them to have the file, then print the report
+    private static void run(File directory, int numPeers, long fileSize, int pieceSize, int latencyMillis, long minRate, long maxRate, int connections, int timeoutSeconds, boolean threadPerConnection, long readCacheSize, boolean randomPreferredNeighbors, boolean randomPieceOrder) throws IOException, InterruptedException
+    {
+        // Write the file the first peer shares
+        Random random = new Random(RANDOM_SEED);
+        File seedFile = new File(directory, "peer_" + FIRST_PEER_ID + "/" + FILE_NAME);
+        writeRandomFile(seedFile, fileSize, random);
+        // Start the peers in order, each one only knows about the peers started before it
+        List<PeerProcess> nodes = new ArrayList<PeerProcess>();
+        long swarmStart = System.nanoTime();
+        for (int i = 0; i < numPeers; i++) {
+            long rate = maxRate > minRate ? minRate + (long)(random.nextDouble() * (maxRate - minRate)) : minRate;
+            PeerConfig config = peerConfig(directory, FIRST_PEER_ID + i, fileSize, pieceSize, latencyMillis, rate, connections);
+            config.hasFile = i == 0;
+            config.threadPerConnection = threadPerConnection;
+            config.readCacheSize = readCacheSize;
+            config.randomPreferredNeighbors = randomPreferredNeighbors;
+            config.randomPieceOrder = randomPieceOrder;
+            List<PeerProcess> earlierNodes = new ArrayList<PeerProcess>(nodes);
+            Collections.shuffle(earlierNodes, random);
+            for (PeerProcess node : earlierNodes.subList(0, Math.min(connections, earlierNodes.size())))
+                config.peers.add(new PeerConfig.PeerAddress(node.id(), "localhost", node.port(), false));
+            PeerProcess node = new PeerProcess(config);
+            node.start();
+            nodes.add(node);
+        }
+        long startupMillis = (System.nanoTime() - swarmStart) / 1000000L;
+        // Wait until every peer has the whole file
+        long deadline = swarmStart + timeoutSeconds * 1000000000L;
+        while (System.nanoTime() < deadline && !allComplete(nodes))
+            Thread.sleep(100);
+        long swarmMillis = (System.nanoTime() - swarmStart) / 1000000L;
+        // Measure before closing, so the shutdown isn't counted
+        long[] cpuTimes = new long[numPeers];
+        for (int i = 0; i < numPeers; i++)
+            cpuTimes[i] = nodes.get(i).cpuTimeNanos();
+        for (PeerProcess node : nodes)
+            node.close();
+        report(nodes, cpuTimes, seedFile, directory, startupMillis, swarmMillis);
+    }
+
+    // How peers choose their preferred neighbors, returns whether they choose at random instead of by rate
+    private static boolean parseChoking(String name)
+    {
+        if (name.equalsIgnoreCase("Rate"))
+            return false;
+        if (name.equalsIgnoreCase("Random"))
+            return true;
+        throw new IllegalArgumentException("Unknown choking mode '" + name + "'");
+    }
+
+    // The order peers request pieces in, returns whether they pick at random instead of rarest first
+    private static boolean parsePieceOrder(String name)
+    {
+        if (name.equalsIgnoreCase("Rarest"))
+            return false;
+        if (name.equalsIgnoreCase("Random"))
+            return true;
+        throw new IllegalArgumentException("Unknown piece order '" + name + "'");
+    }
+
+    // The settings every peer in the swarm shares, with a short unchoking interval so the swarm gets going quickly
+    private static PeerConfig peerConfig(File directory, int id, long fileSize, int pieceSize, int latencyMillis, long rate, int connections)
+    {
+        PeerConfig config = new PeerConfig();
+        config.id = id;
+        config.port = 0;
+        config.directory = directory;
+        config.numberOfPreferredNeighbors = 4;
+        config.unchokingInterval = 1;
+        config.optimisticUnchokingInterval = 2;
+        config.fileName = FILE_NAME;
+        config.fileSize = fileSize;
+        config.pieceSize = pieceSize;
+        // Each peer's link to the rest of the swarm is limited to the given rate in both directions
+        config.maxUploadRate = rate;
+        config.maxDownloadRate = rate;
+        config.maxConnections = 2 * connections;
+        config.simulatedLatencyMillis = latencyMillis;
+        // Peers joining late still find someone to download from, everyone is closed together at the end
+        config.closeWhenDone = false;
+        // Logging would only add noise to the measurements
+        config.logLevel = AsyncLogger.OFF;
+        config.writeLogs = false;
+        config.printLogs = false;
+        config.verifierThreads = 1;
+        return config;
+    }
+
+    private static boolean allComplete(List<PeerProcess> nodes)
+    {
+        for (PeerProcess node : nodes)
+            if (node.numPiecesHave() < node.numPieces())
+                return false;
+        return true;
+    }
+
+    // Print one line per peer and a summary, checking each peer's copy against the original
+    private static void report(List<PeerProcess> nodes, long[] cpuTimes, File seedFile, File directory, long startupMillis, long swarmMillis) throws IOException
+    {
+        byte[] original = Files.readAllBytes(seedFile.toPath());
+        System.out.println(String.format("%-6s %10s %10s %10s %10s %10s %8s", "peer", "time_ms", "down_MB", "up_MB", "MB/s", "cpu_ms", "file"));
+        List<Long> completionTimes = new ArrayList<Long>();
+        long totalCpuNanos = 0;
+        int numComplete = 0;
+        int numCorrect = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            PeerProcess node = nodes.get(i);
+            boolean complete = node.numPiecesHave() == node.numPieces();
+            long completionMillis = node.completionMillis();
+            double downloadedMegabytes = node.bytesDownloaded() / 1e6;
+            double uploadedMegabytes = node.bytesUploaded() / 1e6;
+            double throughput = completionMillis > 0 ? downloadedMegabytes * 1000 / completionMillis : 0;
+            File copy = new File(directory, "peer_" + node.id() + "/" + FILE_NAME);
+            boolean correct = copy.isFile() && Arrays.equals(original, Files.readAllBytes(copy.toPath()));
+            if (complete)
+                numComplete++;
+            if (correct)
+                numCorrect++;
+            if (i > 0 && complete)
+                completionTimes.add(completionMillis);
+            totalCpuNanos += cpuTimes[i];
+            System.out.println(String.format("%-6d %10s %10.1f %10.1f %10.2f %10d %8s", node.id(), i == 0 ? "seed" : complete ? String.valueOf(completionMillis) : "-",
+                downloadedMegabytes, uploadedMegabytes, throughput, cpuTimes[i] / 1000000L, correct ? "ok" : "BAD"));
+        }
+        completionTimes.sort(Comparator.naturalOrder());
+        System.out.println();
+        System.out.println("peers complete:      " + numComplete + "/" + nodes.size() + " (" + numCorrect + " with a correct copy)");
+        System.out.println("startup:             " + startupMillis + " ms");
+        System.out.println("swarm complete:      " + swarmMillis + " ms");
+        if (!completionTimes.isEmpty()) {
+            System.out.println("peer time, median:   " + completionTimes.get(completionTimes.size() / 2) + " ms");
+            System.out.println("peer time, p90:      " + completionTimes.get((int)Math.ceil(completionTimes.size() * 0.9) - 1) + " ms");
+            System.out.println("peer time, max:      " + completionTimes.get(completionTimes.size() - 1) + " ms");
+        }
+        System.out.println("total cpu:           " + totalCpuNanos / 1000000L + " ms");
+        // How many uploaded blocks came from the read cache, for the seed and for everyone, when it is on
+        Map<String, Long> seedSample = nodes.get(0).metrics().sample();
+        long seedHits = seedSample.getOrDefault("read_cache_hits_total", 0L);
+        long seedMisses = seedSample.getOrDefault("read_cache_misses_total", 0L);
+        long totalHits = 0;
+        long totalMisses = 0;
+        for (PeerProcess node : nodes) {
+            Map<String, Long> sample = node.metrics().sample();
+            totalHits += sample.getOrDefault("read_cache_hits_total", 0L);
+            totalMisses += sample.getOrDefault("read_cache_misses_total", 0L);
+        }
+        if (totalHits + totalMisses > 0) {
+            System.out.println(String.format("read cache, seed:    %.1f%% of %d blocks", 100.0 * seedHits / Math.max(1, seedHits + seedMisses), seedHits + seedMisses));
+            System.out.println(String.format("read cache, all:     %.1f%% of %d blocks", 100.0 * totalHits / (totalHits + totalMisses), totalHits + totalMisses));
+        }
+    }
+
+    private static void writeRandomFile(File file, long size, Random random) throws IOException
+    {
+        file.getParentFile().mkdirs();
+        byte[] chunk = new byte[1 << 20];
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                output.write(chunk, 0, (int)Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException
+    {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Limits a byte rate by handing out tokens over time, a rate of 0 means unlimited
+public class TokenBucket
+{
+    // Most time worth of tokens saved up while idle, which bounds how large a burst can be
+    public static final long BURST_MILLIS = 250;
+
+    // Bytes per second, may be changed from any thread
+    private volatile long rate;
+    // Tokens may go negative, the bytes sent past the limit are paid back before anything else goes
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+    // How many times a caller had to wait for tokens
+    private volatile long throttleCount = 0;
+
+    public TokenBucket(long rate)
+    {
+        this.rate = rate;
+    }
+
+    public long rate()
+    {
+        return rate;
+    }
+
+    public void setRate(long rate)
+    {
+        this.rate = rate;
+    }
+
+    public long throttleCount()
+    {
+        return throttleCount;
+    }
+
+    // Add the tokens earned since the last refill, returns whether anything may be sent now
+    public boolean isReady(long now)
+    {
+        long rate = this.rate;
+        if (rate <= 0) {
+            tokens = 0;
+            lastRefill = now;
+            return true;
+        }
+        tokens = Math.min(rate * BURST_MILLIS / 1000.0, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        if (tokens >= 0)
+            return true;
+        throttleCount++;
+        return false;
+    }
+
+    // Take tokens for bytes that were just sent or received
+    public void consume(long bytes)
+    {
+        if (rate > 0)
+            tokens -= bytes;
+    }
+
+    // How long until the bucket is out of debt, as of the last refill
+    public long delayMillis()
+    {
+        long rate = this.rate;
+        if (rate <= 0 || tokens >= 0)
+            return 0;
+        return Math.max(1, (long)Math.ceil(-tokens * 1000 / rate));
+    }
+}
@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Every form of the bitfield announcement, encoded and decoded back into a peer's bitfield
+public class BitfieldCodecTest
+{
+    private static final int NUM_PIECES = 10000;
+
+    @Test
+    public void fixedFormRoundTrips()
+    {
+        BitSet bitfield = randomBitfield(NUM_PIECES, 1);
+        Message message = BitfieldCodec.encode(bitfield, NUM_PIECES, false);
+        assertEquals(PeerProcess.BITFIELD, message.type);
+        assertEquals(1 + BitfieldCodec.fixedLength(NUM_PIECES), message.length);
+        assertEquals(bitfield, decode(message, NUM_PIECES));
+    }
+
+    @Test
+    public void everyPieceIsHaveAll()
+    {
+        BitSet bitfield = new BitSet();
+        bitfield.set(0, NUM_PIECES);
+        Message message = BitfieldCodec.encode(bitfield, NUM_PIECES, true);
+        assertEquals(PeerProcess.HAVE_ALL, message.type);
+        assertEquals(1, message.length);
+        assertEquals(bitfield, decode(message, NUM_PIECES));
+    }
+
+    @Test
+    public void noPiecesIsHaveNone()
+    {
+        Message message = BitfieldCodec.encode(new BitSet(), NUM_PIECES, true);
+        assertEquals(PeerProcess.HAVE_NONE, message.type);
+        assertEquals(1, message.length);
+        assertEquals(new BitSet(), decode(message, NUM_PIECES));
+    }
+
+    // A few long runs, like a peer that downloaded mostly in order, are much shorter than one bit per piece
+    @Test
+    public void longRunsAreBitfieldRuns()
+    {
+        BitSet bitfield = new BitSet();
+        bitfield.set(200, 5000);
+        bitfield.set(5001);
+        bitfield.set(9000, NUM_PIECES);
+        Message message = BitfieldCodec.encode(bitfield, NUM_PIECES, true);
+        assertEquals(PeerProcess.BITFIELD_RUNS, message.type);
+        assertTrue(message.length < 20);
+        assertEquals(bitfield, decode(message, NUM_PIECES));
+    }
+
+    // Scattered pieces take more bytes as runs than as bits, so the fixed form is sent even to a peer taking the compact ones
+    @Test
+    public void scatteredPiecesStayFixed()
+    {
+        BitSet bitfield = randomBitfield(NUM_PIECES, 2);
+        Message message = BitfieldCodec.encode(bitfield, NUM_PIECES, true);
+        assertEquals(PeerProcess.BITFIELD, message.type);
+        assertEquals(bitfield, decode(message, NUM_PIECES));
+    }
+
+    @Test
+    public void truncatedRunsAreRejected()
+    {
+        BitSet bitfield = new BitSet();
+        bitfield.set(200, 500);
+        Message message = BitfieldCodec.encode(bitfield, NUM_PIECES, true);
+        assertEquals(PeerProcess.BITFIELD_RUNS, message.type);
+        // Each of the three runs takes two bytes, so dropping the last byte cuts the last run's varint short
+        byte[] truncated = Arrays.copyOf(message.payload, message.length - 2);
+        assertFalse(BitfieldCodec.decode(new Message(PeerProcess.BITFIELD_RUNS, truncated), new BitSet(), NUM_PIECES));
+        // As does a varint that never ends
+        byte[] endless = { (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80 };
+        assertFalse(BitfieldCodec.decode(new Message(PeerProcess.BITFIELD_RUNS, endless), new BitSet(), NUM_PIECES));
+    }
+
+    // Runs that go past the end of the file stop at the last piece
+    @Test
+    public void runsPastTheEndAreClipped()
+    {
+        byte[] runs = { 5, (byte)0xff, 0x7f };
+        BitSet bitfield = new BitSet();
+        assertTrue(BitfieldCodec.decode(new Message(PeerProcess.BITFIELD_RUNS, runs), bitfield, 100));
+        BitSet expected = new BitSet();
+        expected.set(5, 100);
+        assertEquals(expected, bitfield);
+    }
+
+    // Older peers drop trailing zero bytes, and spare bits past the last piece are ignored
+    @Test
+    public void fixedFormToleratesShortAndPaddedPayloads()
+    {
+        BitSet bitfield = decode(new Message(PeerProcess.BITFIELD, new byte[] { 0x01 }), 20);
+        BitSet expected = new BitSet();
+        expected.set(0);
+        assertEquals(expected, bitfield);
+        bitfield = decode(new Message(PeerProcess.BITFIELD, new byte[] { (byte)0xff, (byte)0xff }), 10);
+        expected.set(0, 10);
+        assertEquals(expected, bitfield);
+    }
+
+    // Decoding replaces what the peer announced before rather than adding to it
+    @Test
+    public void decodeReplacesThePeersPieces()
+    {
+        BitSet bitfield = new BitSet();
+        bitfield.set(0, NUM_PIECES);
+        assertTrue(BitfieldCodec.decode(new Message(PeerProcess.HAVE_NONE), bitfield, NUM_PIECES));
+        assertTrue(bitfield.isEmpty());
+    }
+
+    private static BitSet decode(Message message, int numPieces)
+    {
+        BitSet bitfield = new BitSet();
+        assertTrue(BitfieldCodec.decode(message, bitfield, numPieces));
+        return bitfield;
+    }
+
+    private static BitSet randomBitfield(int numPieces, long seed)
+    {
+        Random random = new Random(seed);
+        BitSet bitfield = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++)
+            if (random.nextBoolean())
+                bitfield.set(i);
+        return bitfield;
+    }
+}
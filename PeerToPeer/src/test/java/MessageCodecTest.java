@@ -0,0 +1,254 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Frames queued by one codec and decoded by another over a loopback connection
+public class MessageCodecTest
+{
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    // Longest a test waits for bytes to come through the loopback connection
+    private static final long TIMEOUT_NANOS = 10_000_000_000L;
+
+    private ServerSocketChannel server;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+    private MessageCodec out;
+    private MessageCodec in;
+
+    @BeforeEach
+    public void connect() throws IOException
+    {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = SocketChannel.open(server.getLocalAddress());
+        receiver = server.accept();
+        // Both ends non-blocking, as the event loop has them, so one thread can write and read
+        sender.configureBlocking(false);
+        receiver.configureBlocking(false);
+        out = new MessageCodec(sender, MAX_MESSAGE_LENGTH);
+        in = new MessageCodec(receiver, MAX_MESSAGE_LENGTH);
+    }
+
+    @AfterEach
+    public void close() throws IOException
+    {
+        sender.close();
+        receiver.close();
+        server.close();
+    }
+
+    @Test
+    public void handshakeComesFirst() throws IOException
+    {
+        HandshakeMessage handshake = new HandshakeMessage(1234);
+        handshake.compactBitfield = false;
+        out.writeHandshake(handshake);
+        Object received = next();
+        assertTrue(received instanceof HandshakeMessage);
+        assertEquals(1234, ((HandshakeMessage)received).peerId);
+        assertFalse(((HandshakeMessage)received).compactBitfield);
+    }
+
+    @Test
+    public void messagesRoundTrip() throws IOException
+    {
+        handshake();
+        out.writeMessage(new Message(PeerProcess.HAVE, ByteBuffer.allocate(4).putInt(77).array()));
+        out.writeMessage(new Message(PeerProcess.KEEP_ALIVE));
+        // A PIECE built the way uploads are, header fields then the block from a buffer region
+        byte[] block = new byte[1000];
+        Arrays.fill(block, (byte)9);
+        boolean[] released = new boolean[1];
+        out.beginMessage(PeerProcess.PIECE, 8 + block.length);
+        out.writeInt(3);
+        out.writeInt(16384);
+        out.writeBufferRegion(ByteBuffer.wrap(block), () -> released[0] = true);
+
+        Message have = (Message)next();
+        assertEquals(PeerProcess.HAVE, have.type);
+        assertEquals(5, have.length);
+        assertEquals(77, ByteBuffer.wrap(have.payload).getInt());
+        Message keepAlive = (Message)next();
+        assertEquals(PeerProcess.KEEP_ALIVE, keepAlive.type);
+        assertEquals(1, keepAlive.length);
+        Message piece = (Message)next();
+        assertEquals(PeerProcess.PIECE, piece.type);
+        assertEquals(1 + 8 + block.length, piece.length);
+        ByteBuffer payload = ByteBuffer.wrap(piece.payload, 0, piece.length - 1);
+        assertEquals(3, payload.getInt());
+        assertEquals(16384, payload.getInt());
+        assertArrayEquals(block, Arrays.copyOfRange(piece.payload, 8, 8 + block.length));
+        assertTrue(released[0]);
+        assertFalse(out.hasPendingWrites());
+    }
+
+    // Frames split at every byte only come out once the last byte is in
+    @Test
+    public void partialFramesWaitForTheRest() throws IOException
+    {
+        ByteBuffer frames = ByteBuffer.allocate(32 + 4 + 1 + 4);
+        frames.put(HandshakeMessage.header.getBytes(StandardCharsets.US_ASCII)).put(new byte[9]).put(BitfieldCodec.COMPACT_FLAG).putInt(42);
+        frames.putInt(5).put(PeerProcess.HAVE).putInt(7);
+        byte[] bytes = frames.array();
+        Object handshake = null;
+        Message have = null;
+        for (int i = 0; i < bytes.length; i++) {
+            writeRaw(bytes, i, 1);
+            fillUntilRead(1);
+            Object received = in.read();
+            if (i == 31) {
+                handshake = received;
+            } else if (i == bytes.length - 1) {
+                have = (Message)received;
+            } else {
+                assertNull(received, "decoded a frame after byte " + i);
+            }
+        }
+        assertEquals(42, ((HandshakeMessage)handshake).peerId);
+        assertTrue(((HandshakeMessage)handshake).compactBitfield);
+        assertEquals(PeerProcess.HAVE, have.type);
+        assertEquals(7, ByteBuffer.wrap(have.payload).getInt());
+    }
+
+    @Test
+    public void oversizedFrameIsRejected() throws IOException
+    {
+        handshake();
+        writeRaw(ByteBuffer.allocate(5).putInt(MAX_MESSAGE_LENGTH + 1).put(PeerProcess.PIECE).array(), 0, 5);
+        fillUntilRead(5);
+        assertThrows(IOException.class, () -> in.read());
+    }
+
+    @Test
+    public void emptyFrameIsRejected() throws IOException
+    {
+        handshake();
+        writeRaw(ByteBuffer.allocate(5).putInt(0).put(PeerProcess.HAVE).array(), 0, 5);
+        fillUntilRead(5);
+        assertThrows(IOException.class, () -> in.read());
+    }
+
+    @Test
+    public void invalidHandshakeIsRejected() throws IOException
+    {
+        byte[] bytes = new byte[32];
+        Arrays.fill(bytes, (byte)'x');
+        writeRaw(bytes, 0, bytes.length);
+        fillUntilRead(bytes.length);
+        assertThrows(IOException.class, () -> in.read());
+    }
+
+    // A frame larger than the read buffer grows it rather than getting stuck
+    @Test
+    public void largeFrameGrowsTheBuffer() throws IOException
+    {
+        handshake();
+        byte[] payload = new byte[200 * 1024];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte)i;
+        out.writeMessage(new Message(PeerProcess.PIECE, payload));
+        Message piece = (Message)next();
+        assertEquals(payload.length + 1, piece.length);
+        assertArrayEquals(payload, Arrays.copyOf(piece.payload, payload.length));
+    }
+
+    // Many small frames filling the buffer over and over, split wherever the reads happen to end, all come out in order
+    @Test
+    public void manySmallFramesComeOutInOrder() throws IOException
+    {
+        handshake();
+        int numFrames = 50000;
+        for (int i = 0; i < numFrames; i++)
+            out.writeMessage(new Message(PeerProcess.HAVE, ByteBuffer.allocate(4).putInt(i).array()));
+        int numRead = 0;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (numRead < numFrames && System.nanoTime() < deadline) {
+            out.flush();
+            in.fill();
+            Object received;
+            while ((received = in.read()) != null) {
+                Message have = (Message)received;
+                assertEquals(PeerProcess.HAVE, have.type);
+                assertEquals(numRead, ByteBuffer.wrap(have.payload).getInt());
+                numRead++;
+            }
+        }
+        assertEquals(numFrames, numRead);
+    }
+
+    // A full read buffer ending in part of a length prefix has to make room, or the rest of the frame never fits
+    @Test
+    public void frameCutAtTheEndOfAFullBuffer() throws IOException
+    {
+        handshake();
+        // The read buffer starts at 64 KB, a KEEP_ALIVE and 7281 HAVEs leave 2 bytes of the next HAVE's length at its end
+        int bufferSize = 64 * 1024;
+        int numHaves = 7282;
+        ByteBuffer frames = ByteBuffer.allocate(5 + 9 * numHaves);
+        frames.putInt(1).put(PeerProcess.KEEP_ALIVE);
+        for (int i = 0; i < numHaves; i++)
+            frames.putInt(5).put(PeerProcess.HAVE).putInt(i);
+        writeRaw(frames.array(), 0, bufferSize);
+        fillUntilRead(bufferSize);
+        assertEquals(PeerProcess.KEEP_ALIVE, ((Message)in.read()).type);
+        for (int i = 0; i < numHaves - 1; i++)
+            assertEquals(i, ByteBuffer.wrap(((Message)in.read()).payload).getInt());
+        assertNull(in.read());
+        writeRaw(frames.array(), bufferSize, frames.capacity() - bufferSize);
+        Message last = (Message)next();
+        assertEquals(PeerProcess.HAVE, last.type);
+        assertEquals(numHaves - 1, ByteBuffer.wrap(last.payload).getInt());
+    }
+
+    private void handshake() throws IOException
+    {
+        out.writeHandshake(new HandshakeMessage(1));
+        assertTrue(next() instanceof HandshakeMessage);
+    }
+
+    // Flush and fill until the next frame can be decoded
+    private Object next() throws IOException
+    {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (System.nanoTime() < deadline) {
+            out.flush();
+            Object received = in.read();
+            if (received != null)
+                return received;
+            in.fill();
+        }
+        throw new AssertionError("No frame arrived.");
+    }
+
+    // Write bytes straight to the socket, bypassing the sending codec
+    private void writeRaw(byte[] bytes, int offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        while (buffer.hasRemaining())
+            sender.write(buffer);
+    }
+
+    // Fill until at least the given number of bytes have been read from the socket
+    private void fillUntilRead(int count) throws IOException
+    {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        int bytesRead = 0;
+        while (bytesRead < count && System.nanoTime() < deadline)
+            bytesRead += in.fill();
+        assertEquals(count, bytesRead);
+    }
+}
@@ -0,0 +1,197 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import org.junit.jupiter.api.Test;
+
+// Which blocks get requested, from the random first pieces through rarest first to the end game, and what a failed piece undoes
+public class PiecePickerTest
+{
+    private static final int PIECE_SIZE = 32;
+    private static final int BLOCK_SIZE = 16;
+    private static final int BLOCKS_PER_PIECE = PIECE_SIZE / BLOCK_SIZE;
+
+    @Test
+    public void blocksFollowTheFileLayout()
+    {
+        // The last piece is 20 bytes, so its second block is 4 bytes
+        PiecePicker picker = new PiecePicker(3 * PIECE_SIZE + 20, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        assertEquals(2, picker.blocksInPiece(3));
+        int last = picker.blockId(3, 16);
+        assertEquals(3, picker.pieceOf(last));
+        assertEquals(16, picker.offsetOf(last));
+        assertEquals(4, picker.lengthOf(last));
+        assertTrue(picker.isValidBlock(3, 16, 4));
+        assertFalse(picker.isValidBlock(3, 16, 16));
+        assertFalse(picker.isValidBlock(3, 8, 4));
+        assertFalse(picker.isValidBlock(4, 0, 16));
+    }
+
+    // Blocks of a piece someone else started come before blocks of a new piece
+    @Test
+    public void startedPiecesAreFinishedFirst()
+    {
+        PiecePicker picker = new PiecePicker(10 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        BitSet peer = allPieces(10);
+        picker.peerAdded(peer);
+        RequestQueue first = new RequestQueue(1);
+        RequestQueue second = new RequestQueue(1);
+        assertEquals(1, picker.fillRequests(peer, first));
+        assertEquals(1, picker.fillRequests(peer, second));
+        assertEquals(picker.pieceOf(first.get(0)), picker.pieceOf(second.get(0)));
+        assertEquals(BLOCK_SIZE, Math.abs(picker.offsetOf(first.get(0)) - picker.offsetOf(second.get(0))));
+    }
+
+    // Once the first few pieces are in, the piece the fewest peers have goes first
+    @Test
+    public void rarestPieceGoesFirst()
+    {
+        BitSet have = new BitSet();
+        have.set(0, PiecePicker.RANDOM_FIRST_PIECES);
+        PiecePicker picker = new PiecePicker(10 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, have);
+        BitSet peer = allPieces(10);
+        picker.peerAdded(peer);
+        for (int i = PiecePicker.RANDOM_FIRST_PIECES; i < 10; i++)
+            if (i != 7)
+                picker.pieceAdded(i);
+        RequestQueue queue = new RequestQueue(BLOCKS_PER_PIECE);
+        assertEquals(BLOCKS_PER_PIECE, picker.fillRequests(peer, queue));
+        assertEquals(7, picker.pieceOf(queue.get(0)));
+        assertEquals(7, picker.pieceOf(queue.get(1)));
+    }
+
+    @Test
+    public void nothingToAskAPeerWithOnlyPiecesWeHave()
+    {
+        BitSet have = new BitSet();
+        have.set(0, 5);
+        PiecePicker picker = new PiecePicker(10 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, have);
+        BitSet peer = new BitSet();
+        peer.set(0, 5);
+        picker.peerAdded(peer);
+        assertEquals(0, picker.fillRequests(peer, new RequestQueue(8)));
+    }
+
+    // With every missing block requested somewhere, other peers are asked for the same blocks, each block once per peer
+    @Test
+    public void endGameRequestsMissingBlocksAgain()
+    {
+        PiecePicker picker = new PiecePicker(2 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        BitSet peer = allPieces(2);
+        picker.peerAdded(peer);
+        picker.peerAdded(peer);
+        assertFalse(picker.isEndGame());
+        RequestQueue first = new RequestQueue(8);
+        assertEquals(4, picker.fillRequests(peer, first));
+        assertTrue(picker.isEndGame());
+        RequestQueue second = new RequestQueue(8);
+        assertEquals(4, picker.fillRequests(peer, second));
+        assertEquals(0, picker.fillRequests(peer, second));
+        // Received blocks aren't asked for again
+        picker.blockReceived(first.poll());
+        second.clear();
+        assertEquals(3, picker.fillRequests(peer, second));
+        // Until every piece is in
+        for (int i = 0; i < first.size(); i++)
+            picker.blockReceived(first.get(i));
+        assertFalse(picker.isEndGame());
+        assertEquals(0, picker.fillRequests(peer, new RequestQueue(8)));
+    }
+
+    // A request given up on outside the end game makes its block available to the next peer
+    @Test
+    public void cancelledBlockIsRequestedAgain()
+    {
+        PiecePicker picker = new PiecePicker(2 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        BitSet peer = allPieces(2);
+        picker.peerAdded(peer);
+        RequestQueue first = new RequestQueue(8);
+        picker.fillRequests(peer, first);
+        assertTrue(picker.isEndGame());
+        int block = first.get(2);
+        picker.cancel(block);
+        assertFalse(picker.isEndGame());
+        RequestQueue second = new RequestQueue(8);
+        assertEquals(1, picker.fillRequests(peer, second));
+        assertEquals(block, second.get(0));
+        assertTrue(picker.isEndGame());
+    }
+
+    // A piece that fails verification loses all of its blocks, and they are requested again
+    @Test
+    public void failedPieceIsRequestedAgain()
+    {
+        PiecePicker picker = new PiecePicker(3 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        BitSet peer = allPieces(3);
+        picker.peerAdded(peer);
+        RequestQueue queue = new RequestQueue(BLOCKS_PER_PIECE);
+        picker.fillRequests(peer, queue);
+        int pieceIndex = picker.pieceOf(queue.get(0));
+        assertFalse(picker.blockReceived(queue.poll()));
+        assertTrue(picker.blockReceived(queue.poll()));
+        assertTrue(picker.isReceived(picker.blockId(pieceIndex, 0)));
+        picker.pieceFailed(pieceIndex);
+        assertFalse(picker.isReceived(picker.blockId(pieceIndex, 0)));
+        assertFalse(picker.isReceived(picker.blockId(pieceIndex, BLOCK_SIZE)));
+        // Take every block there is, the failed piece's two are among them
+        RequestQueue all = new RequestQueue(16);
+        assertEquals(3 * BLOCKS_PER_PIECE, picker.fillRequests(peer, all));
+        assertTrue(all.contains(picker.blockId(pieceIndex, 0)));
+        assertTrue(all.contains(picker.blockId(pieceIndex, BLOCK_SIZE)));
+    }
+
+    // A piece failing during the end game, or after the last piece came in, takes us back out of the end game
+    @Test
+    public void failedPieceLeavesTheEndGame()
+    {
+        PiecePicker picker = new PiecePicker(2 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        BitSet peer = allPieces(2);
+        picker.peerAdded(peer);
+        RequestQueue queue = new RequestQueue(8);
+        picker.fillRequests(peer, queue);
+        assertTrue(picker.isEndGame());
+        int pieceIndex = picker.pieceOf(queue.get(0));
+        picker.blockReceived(picker.blockId(pieceIndex, 0));
+        assertTrue(picker.blockReceived(picker.blockId(pieceIndex, BLOCK_SIZE)));
+        picker.pieceFailed(pieceIndex);
+        assertFalse(picker.isEndGame());
+        RequestQueue retry = new RequestQueue(8);
+        assertEquals(BLOCKS_PER_PIECE, picker.fillRequests(peer, retry));
+        assertTrue(picker.isEndGame());
+        // Finish everything, then fail a piece once more
+        for (int block = 0; block < 2 * BLOCKS_PER_PIECE; block++)
+            picker.blockReceived(block);
+        assertFalse(picker.isEndGame());
+        picker.pieceFailed(1);
+        assertFalse(picker.isEndGame());
+        assertEquals(BLOCKS_PER_PIECE, picker.fillRequests(peer, new RequestQueue(8)));
+        assertTrue(picker.isEndGame());
+    }
+
+    // Counts follow peers joining, leaving and announcing pieces
+    @Test
+    public void availabilityFollowsPeers()
+    {
+        PiecePicker picker = new PiecePicker(4 * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, new BitSet());
+        BitSet peer = new BitSet();
+        peer.set(1);
+        peer.set(3);
+        picker.peerAdded(peer);
+        picker.peerAdded(allPieces(4));
+        picker.pieceAdded(0);
+        assertEquals(2, picker.availability(0));
+        assertEquals(2, picker.availability(1));
+        assertEquals(1, picker.availability(2));
+        picker.peerRemoved(peer);
+        assertEquals(1, picker.availability(1));
+        assertEquals(1, picker.availability(3));
+    }
+
+    private static BitSet allPieces(int numPieces)
+    {
+        BitSet pieces = new BitSet(numPieces);
+        pieces.set(0, numPieces);
+        return pieces;
+    }
+}
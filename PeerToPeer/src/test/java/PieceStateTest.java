@@ -0,0 +1,162 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Saving completed pieces and reading them back after a restart, including after a crash left the state file half written
+public class PieceStateTest
+{
+    private static final long FILE_SIZE = 100 * 1000 + 123;
+    private static final int PIECE_SIZE = 1000;
+    // 101 pieces, so the last bitfield byte has spare bits
+    private static final int NUM_PIECES = 101;
+    // File size and piece size, then one bit per piece
+    private static final int STATE_LENGTH = 12 + (NUM_PIECES + 7) / 8;
+
+    @TempDir
+    File directory;
+    private String stateFileName;
+
+    @BeforeEach
+    public void setup()
+    {
+        stateFileName = PieceState.stateFileName(new File(directory, "peer_1/data.bin").getPath());
+    }
+
+    @Test
+    public void savedPiecesAreReloaded() throws IOException
+    {
+        BitSet pieces = pieces(0, 7, 8, 50, 100);
+        saveAndClose(pieces);
+        assertEquals(STATE_LENGTH, new File(stateFileName).length());
+        assertEquals(pieces, reload());
+    }
+
+    @Test
+    public void unsavedPiecesAreNotReloaded() throws IOException
+    {
+        PieceState state = new PieceState(stateFileName, FILE_SIZE, PIECE_SIZE);
+        state.load();
+        state.pieceCompleted(3);
+        state.save();
+        state.pieceCompleted(4);
+        assertTrue(state.isDirty());
+        state.close();
+        assertEquals(pieces(3), reload());
+    }
+
+    @Test
+    public void lostPiecesAreForgotten() throws IOException
+    {
+        saveAndClose(pieces(1, 2, 3));
+        PieceState state = new PieceState(stateFileName, FILE_SIZE, PIECE_SIZE);
+        state.load();
+        state.pieceLost(2);
+        state.save();
+        state.close();
+        assertEquals(pieces(1, 3), reload());
+    }
+
+    // A crash in the middle of a save leaves each byte with its old or its new value, never anything else
+    @Test
+    public void tornSaveKeepsWholeBytes() throws IOException
+    {
+        saveAndClose(pieces(0));
+        saveAndClose(pieces(0, 1, 9, 17));
+        // The save got as far as the first byte, the second and third still hold what the first save wrote
+        try (RandomAccessFile file = new RandomAccessFile(stateFileName, "rw")) {
+            file.seek(12 + 1);
+            file.write(0);
+            file.write(0);
+        }
+        assertEquals(pieces(0, 1), reload());
+    }
+
+    // A state file cut short, or longer than it should be, can't be trusted, so the download starts over with a fresh one
+    @Test
+    public void stateFileOfTheWrongLengthStartsFresh() throws IOException
+    {
+        saveAndClose(pieces(5, 6));
+        try (RandomAccessFile file = new RandomAccessFile(stateFileName, "rw")) {
+            file.setLength(STATE_LENGTH - 1);
+        }
+        assertEquals(new BitSet(), reload());
+        assertEquals(STATE_LENGTH, new File(stateFileName).length());
+        saveAndClose(pieces(5, 6));
+        try (RandomAccessFile file = new RandomAccessFile(stateFileName, "rw")) {
+            file.setLength(STATE_LENGTH + 1);
+        }
+        assertEquals(new BitSet(), reload());
+    }
+
+    // The fresh state file is written to a temporary file first, one left behind by a crash doesn't get in the way
+    @Test
+    public void leftoverTemporaryFileIsIgnored() throws IOException
+    {
+        new File(stateFileName).getParentFile().mkdirs();
+        Files.write(new File(stateFileName + ".tmp").toPath(), new byte[] { 1, 2, 3 });
+        assertEquals(new BitSet(), reload());
+        saveAndClose(pieces(9));
+        assertEquals(pieces(9), reload());
+    }
+
+    @Test
+    public void stateOfAnotherDownloadIsIgnored() throws IOException
+    {
+        saveAndClose(pieces(1, 2));
+        // Same number of pieces, so the same length, but a different file size
+        PieceState state = new PieceState(stateFileName, FILE_SIZE + 1, PIECE_SIZE);
+        assertEquals(new BitSet(), state.load());
+        state.close();
+    }
+
+    // Bits past the last piece are padding, even if something set them
+    @Test
+    public void sparePaddingBitsAreIgnored() throws IOException
+    {
+        saveAndClose(pieces(100));
+        try (RandomAccessFile file = new RandomAccessFile(stateFileName, "rw")) {
+            file.seek(STATE_LENGTH - 1);
+            file.write(0xff);
+        }
+        assertEquals(pieces(96, 97, 98, 99, 100), reload());
+    }
+
+    private void saveAndClose(BitSet pieces) throws IOException
+    {
+        PieceState state = new PieceState(stateFileName, FILE_SIZE, PIECE_SIZE);
+        BitSet saved = state.load();
+        for (int i = saved.nextSetBit(0); i != -1; i = saved.nextSetBit(i + 1))
+            if (!pieces.get(i))
+                state.pieceLost(i);
+        for (int i = pieces.nextSetBit(0); i != -1; i = pieces.nextSetBit(i + 1))
+            state.pieceCompleted(i);
+        state.save();
+        state.close();
+    }
+
+    private BitSet reload() throws IOException
+    {
+        PieceState state = new PieceState(stateFileName, FILE_SIZE, PIECE_SIZE);
+        try {
+            return state.load();
+        } finally {
+            state.close();
+        }
+    }
+
+    private static BitSet pieces(int... indexes)
+    {
+        BitSet pieces = new BitSet(NUM_PIECES);
+        for (int i : indexes)
+            pieces.set(i);
+        return pieces;
+    }
+}
@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Pieces laid over several files as one stream, including empty files and pieces that span file boundaries
+public class PieceStorageTest
+{
+    private static final int PIECE_SIZE = 8;
+    // 32 bytes in four pieces, the empty file sits between the first and the third
+    private static final long[] FILE_SIZES = { 5, 0, 7, 20 };
+    private static final int STREAM_SIZE = 32;
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void positionsMapToFiles() throws IOException
+    {
+        PieceStorage storage = new PieceStorage(paths(), FILE_SIZES, PIECE_SIZE, false);
+        assertEquals(4, storage.numPieces());
+        assertEquals(0, storage.fileAt(0));
+        assertEquals(0, storage.fileAt(4));
+        // The empty file starts where the third does, the position belongs to the third
+        assertEquals(2, storage.fileAt(5));
+        assertEquals(2, storage.fileAt(11));
+        assertEquals(3, storage.fileAt(12));
+        assertEquals(3, storage.fileAt(31));
+        assertEquals(12, storage.fileStart(3));
+        assertEquals(12, storage.fileEnd(2));
+        storage.close();
+    }
+
+    // Every block written lands at its offset in the right file, and reads back as one piece
+    @Test
+    public void blocksSpanFileBoundaries() throws IOException
+    {
+        byte[] stream = new byte[STREAM_SIZE];
+        for (int i = 0; i < stream.length; i++)
+            stream[i] = (byte)(i + 1);
+        PieceStorage storage = new PieceStorage(paths(), FILE_SIZES, PIECE_SIZE, false);
+        // Write in 4-byte blocks, out of order
+        for (int pieceIndex = 3; pieceIndex >= 0; pieceIndex--)
+            for (int offset = 0; offset < PIECE_SIZE; offset += 4)
+                storage.writeBlock(pieceIndex, offset, stream, pieceIndex * PIECE_SIZE + offset, 4);
+        for (int pieceIndex = 0; pieceIndex < 4; pieceIndex++) {
+            ByteBuffer piece = ByteBuffer.allocate(PIECE_SIZE);
+            storage.readPiece(pieceIndex, piece);
+            assertArrayEquals(Arrays.copyOfRange(stream, pieceIndex * PIECE_SIZE, (pieceIndex + 1) * PIECE_SIZE), piece.array());
+        }
+        storage.close();
+        String[] paths = paths();
+        long start = 0;
+        for (int i = 0; i < paths.length; i++) {
+            byte[] contents = Files.readAllBytes(new File(paths[i]).toPath());
+            assertArrayEquals(Arrays.copyOfRange(stream, (int)start, (int)(start + FILE_SIZES[i])), contents, "file " + i);
+            start += FILE_SIZES[i];
+        }
+    }
+
+    @Test
+    public void lastPieceIsShorter() throws IOException
+    {
+        PieceStorage storage = new PieceStorage(new String[] { new File(directory, "single").getPath() }, new long[] { 20 }, PIECE_SIZE, false);
+        assertEquals(3, storage.numPieces());
+        assertEquals(4, storage.pieceLength(2));
+        assertThrows(IOException.class, () -> storage.writeBlock(2, 0, new byte[8], 0, 8));
+        assertThrows(IOException.class, () -> storage.writeBlock(0, -1, new byte[8], 0, 1));
+        storage.close();
+    }
+
+    // Pieces only count as saved if every file they lie in was already there at full size
+    @Test
+    public void existedAtStartChecksEveryFileOfAPiece() throws IOException
+    {
+        String[] paths = paths();
+        Files.write(new File(paths[0]).toPath(), new byte[5]);
+        Files.write(new File(paths[2]).toPath(), new byte[3]);
+        PieceStorage storage = new PieceStorage(paths, FILE_SIZES, PIECE_SIZE, false);
+        // Piece 0 covers the first file and the start of the third, which is too short
+        assertFalse(storage.existedAtStart(0));
+        storage.close();
+        Files.write(new File(paths[2]).toPath(), new byte[7]);
+        storage = new PieceStorage(paths, FILE_SIZES, PIECE_SIZE, false);
+        assertTrue(storage.existedAtStart(0));
+        assertFalse(storage.existedAtStart(1));
+        storage.close();
+    }
+
+    private String[] paths()
+    {
+        new File(directory, "shared").mkdirs();
+        String[] paths = new String[FILE_SIZES.length];
+        for (int i = 0; i < paths.length; i++)
+            paths[i] = new File(directory, "shared/file" + i).getPath();
+        return paths;
+    }
+}
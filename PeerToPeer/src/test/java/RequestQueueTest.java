@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// The window of requests outstanding with one peer
+public class RequestQueueTest
+{
+    @Test
+    public void answersRemoveTheirRequestsInOrder()
+    {
+        RequestQueue queue = new RequestQueue(4);
+        for (int block = 10; block < 14; block++)
+            queue.add(block);
+        assertTrue(queue.isFull());
+        assertTrue(queue.remove(12));
+        assertFalse(queue.remove(12));
+        assertEquals(3, queue.size());
+        assertEquals(10, queue.get(0));
+        assertEquals(11, queue.get(1));
+        assertEquals(13, queue.get(2));
+        assertEquals(10, queue.poll());
+        assertFalse(queue.contains(10));
+        assertTrue(queue.contains(13));
+    }
+
+    // The queue is a ring, so it keeps its order as it wraps around
+    @Test
+    public void wrapsAround()
+    {
+        RequestQueue queue = new RequestQueue(3);
+        for (int block = 0; block < 30; block++) {
+            queue.add(block);
+            if (queue.isFull())
+                assertEquals(block - 2, queue.poll());
+        }
+        assertEquals(2, queue.size());
+        assertEquals(28, queue.get(0));
+        assertEquals(29, queue.get(1));
+        assertTrue(queue.remove(29));
+        assertEquals(28, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    // The oldest request stays at the head, with the time it was sent
+    @Test
+    public void oldestRequestIsAtTheHead()
+    {
+        RequestQueue queue = new RequestQueue(4);
+        queue.add(1);
+        long before = System.nanoTime();
+        queue.add(2);
+        assertTrue(queue.oldestTime() <= before);
+        assertTrue(queue.sentTime(2) >= before);
+        assertEquals(-1, queue.sentTime(3));
+        queue.remove(1);
+        assertEquals(queue.sentTime(2), queue.oldestTime());
+    }
+
+    // A smaller window keeps the requests already sent, and the window never goes below one or above the capacity
+    @Test
+    public void limitShrinksTheWindow()
+    {
+        RequestQueue queue = new RequestQueue(8);
+        for (int block = 0; block < 4; block++)
+            queue.add(block);
+        queue.setLimit(2);
+        assertTrue(queue.isFull());
+        assertEquals(4, queue.size());
+        queue.setLimit(0);
+        assertEquals(1, queue.limit());
+        queue.setLimit(100);
+        assertEquals(8, queue.limit());
+        assertFalse(queue.isFull());
+    }
+}
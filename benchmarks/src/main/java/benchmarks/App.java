@@ -0,0 +1,98 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// The peer's classes live in the unnamed package, which code in a named package can't refer to (and JMH needs a named package),
+// so the benchmarks reach them through method handles with every class type erased to Object
+final class App
+{
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle NEW_PEER_CONFIG = constructor("PeerConfig");
+    private static final MethodHandle SET_PIECE_SIZE = setter("PeerConfig", "pieceSize", int.class);
+    private static final MethodHandle NEW_PEER_PROCESS = constructor("PeerProcess", type("PeerConfig"));
+
+    private App()
+    {
+    }
+
+    static Class<?> type(String className)
+    {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameterTypes)
+    {
+        try {
+            Class<?> type = type(className);
+            return erase(LOOKUP.findConstructor(type, MethodType.methodType(void.class, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Private methods are fine too, the peer's classes are in the same (unnamed) module as this one
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameterTypes)
+    {
+        try {
+            Class<?> type = type(className);
+            return erase(lookupIn(type).findVirtual(type, name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes)
+    {
+        try {
+            Class<?> type = type(className);
+            return erase(lookupIn(type).findStatic(type, name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle getter(String className, String name, Class<?> fieldType)
+    {
+        try {
+            Class<?> type = type(className);
+            return erase(lookupIn(type).findGetter(type, name, fieldType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle setter(String className, String name, Class<?> fieldType)
+    {
+        try {
+            Class<?> type = type(className);
+            return erase(lookupIn(type).findSetter(type, name, fieldType));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A peer process that is never started, for calling its methods directly (the config only needs a piece size)
+    static Object newPeerProcess() throws Throwable
+    {
+        Object config = (Object)NEW_PEER_CONFIG.invokeExact();
+        SET_PIECE_SIZE.invokeExact(config, 1);
+        return (Object)NEW_PEER_PROCESS.invokeExact(config);
+    }
+
+    private static MethodHandles.Lookup lookupIn(Class<?> type) throws IllegalAccessException
+    {
+        return MethodHandles.privateLookupIn(type, LOOKUP);
+    }
+
+    // Call sites pass and get back Object for every class type, primitives stay as they are
+    private static MethodHandle erase(MethodHandle handle)
+    {
+        return handle.asType(handle.type().erase());
+    }
+}
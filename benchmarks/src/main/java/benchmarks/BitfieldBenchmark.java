@@ -0,0 +1,118 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The bitfield work handleHandshakeMessage and handleBitfieldMessage do when peers announce their pieces, and the missing piece check TryRequestingPiece does
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark
+{
+    private static final int PIECE_SIZE = 65536;
+    private static final int BLOCK_SIZE = 16384;
+
+    private static final MethodHandle NEW_PICKER = App.constructor("PiecePicker", long.class, int.class, int.class, BitSet.class);
+    private static final MethodHandle PEER_ADDED = App.method("PiecePicker", "peerAdded", void.class, BitSet.class);
+    private static final MethodHandle PEER_REMOVED = App.method("PiecePicker", "peerRemoved", void.class, BitSet.class);
+    private static final MethodHandle SET_BITFIELD = App.setter("PeerProcess", "bitfield", BitSet.class);
+    private static final MethodHandle SET_NUM_PIECES = App.setter("PeerProcess", "numPieces", int.class);
+    private static final MethodHandle HAS_PIECE_WE_NEED = App.method("PeerProcess", "hasPieceWeNeed", boolean.class, BitSet.class);
+    private static final MethodHandle ENCODE = App.staticMethod("BitfieldCodec", "encode", App.type("Message"), BitSet.class, int.class, boolean.class);
+    private static final MethodHandle DECODE = App.staticMethod("BitfieldCodec", "decode", boolean.class, App.type("Message"), BitSet.class, int.class);
+
+    @Param({ "10000", "100000", "1000000" })
+    public int numPieces;
+
+    // How much of the file we have, the missing piece check gets faster the closer we are to done
+    @Param({ "0.5", "0.99" })
+    public double haveFraction;
+
+    private BitSet bitfield;
+    private BitSet peerBitfield;
+    private BitSet seederBitfield;
+    private Object message;
+    private Object picker;
+    private Object peerProcess;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Random random = new Random(42);
+        bitfield = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++)
+            if (random.nextDouble() < haveFraction)
+                bitfield.set(i);
+        // The peer has a random half of the pieces, so it also has about half of the ones we are missing
+        peerBitfield = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++)
+            if (random.nextBoolean())
+                peerBitfield.set(i);
+        seederBitfield = new BitSet(numPieces);
+        seederBitfield.set(0, numPieces);
+        message = (Object)ENCODE.invokeExact((Object)peerBitfield, numPieces, false);
+        picker = (Object)NEW_PICKER.invokeExact((long)numPieces * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, (Object)bitfield);
+        PEER_ADDED.invokeExact(picker, (Object)peerBitfield);
+        peerProcess = App.newPeerProcess();
+        SET_BITFIELD.invokeExact(peerProcess, (Object)bitfield);
+        SET_NUM_PIECES.invokeExact(peerProcess, numPieces);
+    }
+
+    // Our bitfield in the fixed-length form, and in the smallest form a peer taking the compact ones gets
+    @Benchmark
+    public Object encodeFixed() throws Throwable
+    {
+        return (Object)ENCODE.invokeExact((Object)bitfield, numPieces, false);
+    }
+
+    @Benchmark
+    public Object encodeCompact() throws Throwable
+    {
+        return (Object)ENCODE.invokeExact((Object)bitfield, numPieces, true);
+    }
+
+    // A seeder's bitfield, which the compact forms turn into a single HAVE_ALL
+    @Benchmark
+    public Object encodeSeederFixed() throws Throwable
+    {
+        return (Object)ENCODE.invokeExact((Object)seederBitfield, numPieces, false);
+    }
+
+    @Benchmark
+    public boolean decode() throws Throwable
+    {
+        return (boolean)DECODE.invokeExact(message, (Object)peerBitfield, numPieces);
+    }
+
+    // The whole handler: move the peer's counts out of the availability index, decode in place, add them back, then decide whether we are interested
+    @Benchmark
+    public boolean handleBitfield() throws Throwable
+    {
+        PEER_REMOVED.invokeExact(picker, (Object)peerBitfield);
+        boolean valid = (boolean)DECODE.invokeExact(message, (Object)peerBitfield, numPieces);
+        PEER_ADDED.invokeExact(picker, (Object)peerBitfield);
+        return valid && (boolean)HAS_PIECE_WE_NEED.invokeExact(peerProcess, (Object)peerBitfield);
+    }
+
+    @Benchmark
+    public boolean hasPieceWeNeed() throws Throwable
+    {
+        return (boolean)HAS_PIECE_WE_NEED.invokeExact(peerProcess, (Object)peerBitfield);
+    }
+}
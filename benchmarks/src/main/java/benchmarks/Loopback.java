@@ -0,0 +1,34 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// A connected pair of non-blocking sockets on the loopback interface, set up like the peer sets up its connections
+final class Loopback implements AutoCloseable
+{
+    final SocketChannel sender;
+    final SocketChannel receiver;
+
+    Loopback() throws IOException
+    {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            sender = SocketChannel.open(serverChannel.getLocalAddress());
+            receiver = serverChannel.accept();
+        }
+        for (SocketChannel channel : new SocketChannel[] { sender, receiver }) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    public void close() throws IOException
+    {
+        sender.close();
+        receiver.close();
+    }
+}
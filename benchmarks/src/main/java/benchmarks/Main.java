@@ -0,0 +1,23 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs JMH, writing the results as JSON to jmh-result.json unless another result format or file is given
+public final class Main
+{
+    private Main()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf"))
+            options.addAll(Arrays.asList("-rf", "json"));
+        if (!options.contains("-rff"))
+            options.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,152 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding messages and decoding them on the other end of a socket, which is what sendMessage and receiveMessage do around the handlers
+// serializedRoundTrip does the same the way the peer did before the binary codec, for comparison
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark
+{
+    private static final MethodHandle NEW_CODEC = App.constructor("MessageCodec", SocketChannel.class, int.class);
+    private static final MethodHandle NEW_MESSAGE = App.constructor("Message", byte.class, byte[].class);
+    private static final MethodHandle NEW_HANDSHAKE = App.constructor("HandshakeMessage", int.class);
+    private static final MethodHandle WRITE_HANDSHAKE = App.method("MessageCodec", "writeHandshake", void.class, App.type("HandshakeMessage"));
+    private static final MethodHandle WRITE_MESSAGE = App.method("MessageCodec", "writeMessage", void.class, App.type("Message"));
+    private static final MethodHandle FLUSH = App.method("MessageCodec", "flush", boolean.class);
+    private static final MethodHandle FILL = App.method("MessageCodec", "fill", int.class);
+    private static final MethodHandle READ = App.method("MessageCodec", "read", Object.class);
+
+    // Large enough for any message the benchmark sends
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    // The object streams keep every object written through them, so they are reset now and then to keep a long run from running out of memory
+    private static final int SERIALIZED_RESET_INTERVAL = 10000;
+
+    // HAVE, REQUEST, and the BITFIELD of a 10000 piece file
+    @Param({ "4", "12", "1250" })
+    public int payloadLength;
+
+    // Messages per round trip, a full window of requests goes out together
+    @Param({ "1", "16" })
+    public int batch;
+
+    private Loopback loopback;
+    private Object sender;
+    private Object receiver;
+    private Object message;
+    private byte[] payload;
+
+    // Blocking sockets wrapped in object streams, as the peer's connections used to be
+    private Socket serializedSender;
+    private Socket serializedReceiver;
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    private int serializedSinceReset = 0;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        loopback = new Loopback();
+        sender = (Object)NEW_CODEC.invokeExact((Object)loopback.sender, MAX_MESSAGE_LENGTH);
+        receiver = (Object)NEW_CODEC.invokeExact((Object)loopback.receiver, MAX_MESSAGE_LENGTH);
+        payload = new byte[payloadLength];
+        ThreadLocalRandom.current().nextBytes(payload);
+        message = (Object)NEW_MESSAGE.invokeExact((byte)4, (Object)payload);
+        // Every connection starts with a handshake
+        WRITE_HANDSHAKE.invokeExact(sender, (Object)NEW_HANDSHAKE.invokeExact(1001));
+        boolean pending = true;
+        Object handshake = null;
+        while (pending || handshake == null) {
+            pending = (boolean)FLUSH.invokeExact(sender);
+            int bytesRead = (int)FILL.invokeExact(receiver);
+            handshake = (Object)READ.invokeExact(receiver);
+        }
+        setupSerialized();
+    }
+
+    private void setupSerialized() throws IOException
+    {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serializedSender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            serializedReceiver = serverSocket.accept();
+        }
+        serializedSender.setTcpNoDelay(true);
+        // Each stream starts with a header, which the input stream waits for
+        out = new ObjectOutputStream(serializedSender.getOutputStream());
+        out.flush();
+        in = new ObjectInputStream(serializedReceiver.getInputStream());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        loopback.close();
+        serializedSender.close();
+        serializedReceiver.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws Throwable
+    {
+        for (int i = 0; i < batch; i++)
+            WRITE_MESSAGE.invokeExact(sender, message);
+        int decoded = 0;
+        boolean pending = true;
+        while (pending || decoded < batch) {
+            pending = (boolean)FLUSH.invokeExact(sender);
+            int bytesRead = (int)FILL.invokeExact(receiver);
+            while ((Object)READ.invokeExact(receiver) != null)
+                decoded++;
+        }
+        return decoded;
+    }
+
+    // The old sendMessage, hasMessage and receiveMessage: a 0xff byte for available() to see, then the serialized message,
+    // and a new message and payload for every send
+    @Benchmark
+    public int serializedRoundTrip() throws IOException, ClassNotFoundException
+    {
+        for (int i = 0; i < batch; i++) {
+            out.writeByte(0xff);
+            out.writeObject(new SerializedMessage((byte)4, payload.clone()));
+            out.flush();
+        }
+        int decoded = 0;
+        while (decoded < batch) {
+            in.readByte();
+            if (in.readObject() != null)
+                decoded++;
+        }
+        serializedSinceReset += batch;
+        if (serializedSinceReset >= SERIALIZED_RESET_INTERVAL) {
+            serializedSinceReset = 0;
+            out.reset();
+        }
+        return decoded;
+    }
+}
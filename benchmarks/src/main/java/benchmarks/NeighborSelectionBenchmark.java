@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Choosing the preferred neighbors among many interested peers, as updatePreferredNeighbors does every unchoking interval
+// (gathering the candidates and picking the fastest, without the choke and unchoke messages that follow)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeighborSelectionBenchmark
+{
+    private static final int NUM_PREFERRED_NEIGHBORS = 4;
+
+    private static final Class<?> PEER_CONNECTION_ARRAY = Array.newInstance(App.type("PeerConnection"), 0).getClass();
+    private static final MethodHandle NEW_PEER = App.constructor("PeerConnection", App.type("MessageCodec"), int.class, boolean.class, int.class, int.class, int.class);
+    private static final MethodHandle DOWNLOAD_RATE = App.getter("PeerConnection", "downloadRate", double.class);
+    private static final MethodHandle SET_DOWNLOAD_RATE = App.setter("PeerConnection", "downloadRate", double.class);
+    private static final MethodHandle SET_CANDIDATES = App.setter("PeerProcess", "candidates", PEER_CONNECTION_ARRAY);
+    private static final MethodHandle SET_CANDIDATE_RATES = App.setter("PeerProcess", "candidateRates", double[].class);
+    private static final MethodHandle SELECT_FASTEST = App.method("PeerProcess", "selectFastest", int.class, int.class, int.class);
+
+    @Param({ "16", "256", "4096" })
+    public int numInterested;
+
+    private Object[] peers;
+    private Object[] candidates;
+    private double[] candidateRates;
+    private Object peerProcess;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Random random = new Random(42);
+        peers = new Object[numInterested];
+        for (int i = 0; i < numInterested; i++) {
+            peers[i] = (Object)NEW_PEER.invokeExact((Object)null, 1000 + i, false, 1, 1, 1);
+            SET_DOWNLOAD_RATE.invokeExact(peers[i], random.nextDouble() * 1e6);
+        }
+        // The peer's own arrays, which selectFastest works in
+        candidates = (Object[])Array.newInstance(App.type("PeerConnection"), numInterested);
+        candidateRates = new double[numInterested];
+        peerProcess = App.newPeerProcess();
+        SET_CANDIDATES.invokeExact(peerProcess, (Object)candidates);
+        SET_CANDIDATE_RATES.invokeExact(peerProcess, (Object)candidateRates);
+    }
+
+    @Benchmark
+    public int select() throws Throwable
+    {
+        for (int i = 0; i < numInterested; i++) {
+            candidates[i] = peers[i];
+            candidateRates[i] = (double)DOWNLOAD_RATE.invokeExact(peers[i]);
+        }
+        return (int)SELECT_FASTEST.invokeExact(peerProcess, numInterested, NUM_PREFERRED_NEIGHBORS);
+    }
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Hashing pieces with SHA-256 the way PieceVerifier does: one piece read from disk and hashed, as for each received piece,
+// and the whole file split across the worker threads, as the seeder does at startup (the file is 64 MB, so MB/s is 64000 / ms per op)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PieceHashingBenchmark
+{
+    private static final int PIECE_SIZE = 262144;
+    private static final int FILE_SIZE = 256 * PIECE_SIZE;
+    private static final int HASH_LENGTH = 32;
+
+    private static final MethodHandle NEW_STORAGE = App.constructor("PieceStorage", String[].class, long[].class, int.class, boolean.class);
+    private static final MethodHandle CLOSE_STORAGE = App.method("PieceStorage", "close", void.class);
+    private static final MethodHandle NEW_VERIFIER = App.constructor("PieceVerifier", App.type("PieceStorage"), int.class, int.class);
+    private static final MethodHandle HASH_PIECE = App.method("PieceVerifier", "hashPiece", void.class, int.class, byte[].class, int.class);
+    private static final MethodHandle HASH_ALL = App.method("PieceVerifier", "hashAll", byte[].class);
+    private static final MethodHandle SHUTDOWN = App.method("PieceVerifier", "shutdown", void.class);
+
+    // Worker threads for hashAll, VerifierThreads in the common config file
+    @Param({ "1", "4" })
+    public int threads;
+
+    private File file;
+    private Object storage;
+    private Object verifier;
+    private byte[] hash = new byte[HASH_LENGTH];
+    private int nextPiece = 0;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        file = File.createTempFile("piece-hashing", ".bin");
+        byte[] data = new byte[FILE_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(data);
+        }
+        storage = (Object)NEW_STORAGE.invokeExact((Object)new String[] { file.getPath() }, (Object)new long[] { FILE_SIZE }, PIECE_SIZE, true);
+        verifier = (Object)NEW_VERIFIER.invokeExact(storage, PIECE_SIZE, threads);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable
+    {
+        SHUTDOWN.invokeExact(verifier);
+        CLOSE_STORAGE.invokeExact(storage);
+        file.delete();
+    }
+
+    // One piece, on the calling thread like a verifier worker
+    @Benchmark
+    public byte[] hashPiece() throws Throwable
+    {
+        HASH_PIECE.invokeExact(verifier, nextPiece, (Object)hash, 0);
+        nextPiece = (nextPiece + 1) % (FILE_SIZE / PIECE_SIZE);
+        return hash;
+    }
+
+    @Benchmark
+    public byte[] hashAll() throws Throwable
+    {
+        return (byte[])(Object)HASH_ALL.invokeExact(verifier);
+    }
+}
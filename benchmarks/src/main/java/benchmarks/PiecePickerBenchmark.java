@@ -0,0 +1,133 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Filling a request window the way TryRequestingPiece does, in a swarm where we and each peer have about half the pieces
+// oldFillWindow picks the same amount of data with the selector TryRequestingPiece had before the picker, for comparison,
+// run with -prof gc to see how much each one allocates
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PiecePickerBenchmark
+{
+    private static final int PIECE_SIZE = 65536;
+    private static final int BLOCK_SIZE = 16384;
+    private static final int NUM_PEERS = 8;
+    private static final int WINDOW = 16;
+    // Pieces the old selector picks per window, the same number of bytes as a window of blocks
+    private static final int OLD_WINDOW = WINDOW * BLOCK_SIZE / PIECE_SIZE;
+
+    private static final MethodHandle NEW_PICKER = App.constructor("PiecePicker", long.class, int.class, int.class, BitSet.class);
+    private static final MethodHandle NEW_QUEUE = App.constructor("RequestQueue", int.class);
+    private static final MethodHandle PEER_ADDED = App.method("PiecePicker", "peerAdded", void.class, BitSet.class);
+    private static final MethodHandle FILL_REQUESTS = App.method("PiecePicker", "fillRequests", int.class, BitSet.class, App.type("RequestQueue"));
+    private static final MethodHandle BLOCK_RECEIVED = App.method("PiecePicker", "blockReceived", boolean.class, int.class);
+    private static final MethodHandle PIECE_OF = App.method("PiecePicker", "pieceOf", int.class, int.class);
+    private static final MethodHandle PIECE_FAILED = App.method("PiecePicker", "pieceFailed", void.class, int.class);
+    private static final MethodHandle IS_EMPTY = App.method("RequestQueue", "isEmpty", boolean.class);
+    private static final MethodHandle POLL = App.method("RequestQueue", "poll", int.class);
+
+    @Param({ "10000", "100000", "1000000" })
+    public int numPieces;
+
+    private Object picker;
+    private Object queue;
+    private BitSet[] peerBitfields;
+    private int nextPeer = 0;
+
+    // For the old selector, the pieces we have and the piece requested from each peer, or -1
+    private BitSet bitfield;
+    private int[] pendingPieces;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Random random = new Random(42);
+        bitfield = randomBitfield(random);
+        picker = (Object)NEW_PICKER.invokeExact((long)numPieces * PIECE_SIZE, PIECE_SIZE, BLOCK_SIZE, (Object)bitfield.clone());
+        peerBitfields = new BitSet[NUM_PEERS];
+        for (int i = 0; i < NUM_PEERS; i++) {
+            peerBitfields[i] = randomBitfield(random);
+            PEER_ADDED.invokeExact(picker, (Object)peerBitfields[i]);
+        }
+        pendingPieces = new int[NUM_PEERS * OLD_WINDOW];
+        Arrays.fill(pendingPieces, -1);
+        queue = (Object)NEW_QUEUE.invokeExact(WINDOW);
+        // Skip past the random first pieces, so the rarest first path is what gets measured
+        for (int i = 0; i < 4 * WINDOW; i++)
+            fillWindow();
+    }
+
+    private BitSet randomBitfield(Random random)
+    {
+        BitSet bitfield = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++)
+            if (random.nextBoolean())
+                bitfield.set(i);
+        return bitfield;
+    }
+
+    // Ask the next peer for a full window, then have every block arrive
+    // Finished pieces are thrown away again so the swarm never runs out of pieces to pick
+    @Benchmark
+    public int fillWindow() throws Throwable
+    {
+        BitSet peerBitfield = peerBitfields[nextPeer];
+        nextPeer = (nextPeer + 1) % NUM_PEERS;
+        int added = (int)FILL_REQUESTS.invokeExact(picker, (Object)peerBitfield, queue);
+        while (!(boolean)IS_EMPTY.invokeExact(queue)) {
+            int block = (int)POLL.invokeExact(queue);
+            if ((boolean)BLOCK_RECEIVED.invokeExact(picker, block))
+                PIECE_FAILED.invokeExact(picker, (int)PIECE_OF.invokeExact(picker, block));
+        }
+        return added;
+    }
+
+    // The old TryRequestingPiece, once per piece: clone the peer's bitfield, leave out what we have and what is pending with any peer,
+    // box what is left into a list and pick at random
+    // Each peer has a window's worth of pieces pending, which are thrown away again once the peer's next window is picked
+    @Benchmark
+    public int oldFillWindow()
+    {
+        BitSet peerBitfield = peerBitfields[nextPeer];
+        int firstSlot = nextPeer * OLD_WINDOW;
+        nextPeer = (nextPeer + 1) % NUM_PEERS;
+        Arrays.fill(pendingPieces, firstSlot, firstSlot + OLD_WINDOW, -1);
+        int added = 0;
+        for (int slot = firstSlot; slot < firstSlot + OLD_WINDOW; slot++) {
+            BitSet peerBitfieldCopy = (BitSet)peerBitfield.clone();
+            peerBitfieldCopy.andNot(bitfield);
+            for (int pendingPiece : pendingPieces)
+                if (pendingPiece != -1)
+                    peerBitfieldCopy.clear(pendingPiece);
+            List<Integer> interestingPieces = new ArrayList<Integer>();
+            for (int i = peerBitfieldCopy.nextSetBit(0); i != -1; i = peerBitfieldCopy.nextSetBit(i + 1))
+                interestingPieces.add(i);
+            if (interestingPieces.size() > 0) {
+                pendingPieces[slot] = interestingPieces.get((int)(Math.random() * interestingPieces.size()));
+                added++;
+            }
+        }
+        return added;
+    }
+}
@@ -0,0 +1,178 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Building and sending the PIECE message for a requested block, the way servePendingUploads answers handleRequestMessage:
+// the header is written into the codec's buffer and the block goes from the file to the socket with transferTo
+// copyBlock does the same the way the peer did before, copying the block out of the file held in memory and serializing it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PieceUploadBenchmark
+{
+    private static final byte PIECE = 7;
+    private static final int PIECE_SIZE = 262144;
+    private static final int FILE_SIZE = 64 * PIECE_SIZE;
+    // The object stream keeps every payload written through it, so it is reset every few blocks
+    private static final int SERIALIZED_RESET_INTERVAL = 16;
+
+    private static final MethodHandle NEW_CODEC = App.constructor("MessageCodec", SocketChannel.class, int.class);
+    private static final MethodHandle NEW_STORAGE = App.constructor("PieceStorage", String[].class, long[].class, int.class, boolean.class);
+    private static final MethodHandle CHANNEL = App.method("PieceStorage", "channel", FileChannel.class, int.class);
+    private static final MethodHandle PIECE_OFFSET = App.method("PieceStorage", "pieceOffset", long.class, int.class);
+    private static final MethodHandle BEGIN_MESSAGE = App.method("MessageCodec", "beginMessage", void.class, byte.class, int.class);
+    private static final MethodHandle WRITE_INT = App.method("MessageCodec", "writeInt", void.class, int.class);
+    private static final MethodHandle WRITE_FILE_REGION = App.method("MessageCodec", "writeFileRegion", void.class, FileChannel.class, long.class, long.class);
+    private static final MethodHandle FLUSH = App.method("MessageCodec", "flush", boolean.class);
+
+    @Param({ "16384", "131072" })
+    public int blockSize;
+
+    private File file;
+    private Object storage;
+    private Loopback loopback;
+    private Object codec;
+    private ByteBuffer drain = ByteBuffer.allocateDirect(256 * 1024);
+    private int nextBlock = 0;
+
+    // The whole file in memory, one array per piece, and the object stream the old path wrote to the socket with
+    private byte[][] fileData;
+    private SocketOutputStream socketOut;
+    private ObjectOutputStream out;
+    private int serializedSinceReset = 0;
+
+    // Writes to the non-blocking socket, reading off the other end whenever the socket is full, so one thread can do both
+    private final class SocketOutputStream extends OutputStream
+    {
+        long bytesWritten = 0;
+        long bytesDrained = 0;
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                bytesWritten += loopback.sender.write(buffer);
+                if (buffer.hasRemaining())
+                    drain();
+            }
+        }
+
+        void drain() throws IOException
+        {
+            drain.clear();
+            bytesDrained += loopback.receiver.read(drain);
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        file = File.createTempFile("piece-upload", ".bin");
+        byte[] data = new byte[FILE_SIZE];
+        ThreadLocalRandom.current().nextBytes(data);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(data);
+        }
+        fileData = new byte[FILE_SIZE / PIECE_SIZE][];
+        for (int i = 0; i < fileData.length; i++)
+            fileData[i] = Arrays.copyOfRange(data, i * PIECE_SIZE, (i + 1) * PIECE_SIZE);
+        storage = (Object)NEW_STORAGE.invokeExact((Object)new String[] { file.getPath() }, (Object)new long[] { FILE_SIZE }, PIECE_SIZE, true);
+        loopback = new Loopback();
+        codec = (Object)NEW_CODEC.invokeExact((Object)loopback.sender, 8 + PIECE_SIZE + 1);
+        socketOut = new SocketOutputStream();
+        out = new ObjectOutputStream(socketOut);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        loopback.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long sendBlock() throws Throwable
+    {
+        int block = nextBlock();
+        int pieceIndex = block / (PIECE_SIZE / blockSize);
+        int offset = (block % (PIECE_SIZE / blockSize)) * blockSize;
+        BEGIN_MESSAGE.invokeExact(codec, PIECE, 8 + blockSize);
+        WRITE_INT.invokeExact(codec, pieceIndex);
+        WRITE_INT.invokeExact(codec, offset);
+        long position = (long)PIECE_OFFSET.invokeExact(storage, pieceIndex) + offset;
+        Object channel = (Object)CHANNEL.invokeExact(storage, 0);
+        WRITE_FILE_REGION.invokeExact(codec, channel, position, (long)blockSize);
+        // Read the message off the other end so the socket never fills up
+        long remaining = 4 + 1 + 8 + blockSize;
+        boolean pending = true;
+        while (pending || remaining > 0) {
+            pending = (boolean)FLUSH.invokeExact(codec);
+            drain.clear();
+            remaining -= loopback.receiver.read(drain);
+        }
+        return remaining;
+    }
+
+    // The old handleRequestMessage and sendMessage: a new payload with the header copied in from a throwaway buffer and the block
+    // copied from memory, then a 0xff byte and the serialized message (the old path sent whole pieces, this sends the same blocks as sendBlock)
+    @Benchmark
+    public long copyBlock() throws IOException
+    {
+        int block = nextBlock();
+        int pieceIndex = block / (PIECE_SIZE / blockSize);
+        int offset = (block % (PIECE_SIZE / blockSize)) * blockSize;
+        byte[] payload = new byte[8 + blockSize];
+        System.arraycopy(ByteBuffer.allocate(8).putInt(pieceIndex).putInt(offset).array(), 0, payload, 0, 8);
+        System.arraycopy(fileData[pieceIndex], offset, payload, 8, blockSize);
+        out.writeByte(0xff);
+        out.writeObject(new SerializedMessage(PIECE, payload));
+        out.flush();
+        if (++serializedSinceReset == SERIALIZED_RESET_INTERVAL) {
+            serializedSinceReset = 0;
+            out.reset();
+        }
+        // Read the rest of the message off the other end
+        while (socketOut.bytesDrained < socketOut.bytesWritten)
+            socketOut.drain();
+        return socketOut.bytesDrained;
+    }
+
+    // Walk through the file block by block, like a peer downloading it in order
+    private int nextBlock()
+    {
+        int block = nextBlock;
+        nextBlock = (nextBlock + 1) % (FILE_SIZE / blockSize);
+        return block;
+    }
+}
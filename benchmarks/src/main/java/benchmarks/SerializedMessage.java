@@ -0,0 +1,18 @@
+package benchmarks;
+
+import java.io.Serializable;
+
+// What Message looked like when the peer sent it with Java serialization, for the benchmarks of the old paths
+final class SerializedMessage implements Serializable
+{
+    int length;
+    byte type;
+    byte[] payload;
+
+    SerializedMessage(byte type, byte[] payload)
+    {
+        this.length = payload.length + 1;
+        this.type = type;
+        this.payload = payload;
+    }
+}